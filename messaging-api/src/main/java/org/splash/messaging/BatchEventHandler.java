@@ -0,0 +1,38 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging;
+
+import java.util.List;
+
+/**
+ * An {@link EventHandler} that takes the messages received on a link one
+ * after another in a single read from the network together. Handlers that
+ * do not implement it get {@link EventHandler#onMessage(InboundLink, Message)}
+ * for each message instead.
+ */
+public interface BatchEventHandler extends EventHandler
+{
+    /**
+     * Invoked with the messages received on the link one after another in
+     * a single read from the network, in the order they were received.
+     */
+    void onMessages(InboundLink link, List<Message> msgs);
+}
@@ -20,6 +20,8 @@
  */
 package org.splash.messaging;
 
+import java.util.concurrent.Executor;
+
 /**
  * Applications could extend this class to provide their own implementation of
  * the ConnectionSettings based on their configuration.
@@ -48,6 +50,19 @@ public class ConnectionSettings
 
     protected long idleTimeout = Long.getLong("splash.connection.idle_timeout", 60000);
 
+    protected boolean reactorEnabled = Boolean.getBoolean("splash.reactor.enabled");
+
+    protected int reactorThreads = Integer.getInteger("splash.reactor.threads", Runtime.getRuntime()
+            .availableProcessors());
+
+    protected boolean directInputEnabled = Boolean.getBoolean("splash.reactor.direct_input");
+
+    protected int dispatcherThreads = Integer.getInteger("splash.dispatcher.threads", 0);
+
+    protected int dispatchQueueSize = Integer.getInteger("splash.dispatcher.queue_size", 1000);
+
+    protected Executor dispatchExecutor = null;
+
     public void setScheme(String scheme)
     {
         this.scheme = scheme;
@@ -103,6 +118,68 @@ public class ConnectionSettings
         this.idleTimeout = idleTimeout;
     }
 
+    /**
+     * If enabled, the connection is serviced by a fixed pool of selector
+     * threads shared by all connections in the JVM, instead of a dedicated
+     * reader thread per connection.
+     */
+    public void setReactorEnabled(boolean reactorEnabled)
+    {
+        this.reactorEnabled = reactorEnabled;
+    }
+
+    /**
+     * The number of selector threads used by the reactor. Only the value seen
+     * by the first connection using the reactor takes effect.
+     */
+    public void setReactorThreads(int reactorThreads)
+    {
+        this.reactorThreads = reactorThreads;
+    }
+
+    /**
+     * If enabled, connections serviced by the reactor read from the socket
+     * directly into the protocol engine's input buffer, avoiding a copy of
+     * every inbound byte. Has no effect unless the reactor is enabled.
+     */
+    public void setDirectInputEnabled(boolean directInputEnabled)
+    {
+        this.directInputEnabled = directInputEnabled;
+    }
+
+    /**
+     * If greater than zero, EventHandler callbacks are invoked on a pool of
+     * this many threads shared by all connections in the JVM, instead of on
+     * the thread that reads from the network. Events for a given link are
+     * still delivered in order. Only the value seen by the first connection
+     * using the pool takes effect.
+     */
+    public void setDispatcherThreads(int dispatcherThreads)
+    {
+        this.dispatcherThreads = dispatcherThreads;
+    }
+
+    /**
+     * The maximum number of messages waiting to be dispatched per inbound
+     * link when EventHandler callbacks are not invoked on the network thread.
+     * Credit issued in {@link CreditMode#AUTO} is capped to this, and is only
+     * replenished as the handler consumes messages.
+     */
+    public void setDispatchQueueSize(int dispatchQueueSize)
+    {
+        this.dispatchQueueSize = dispatchQueueSize;
+    }
+
+    /**
+     * Invoke EventHandler callbacks on the given executor, which may be
+     * dedicated to this connection or shared. Takes precedence over
+     * {@link #setDispatcherThreads(int)}.
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor)
+    {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
     public String getHost()
     {
         return host;
@@ -143,4 +220,34 @@ public class ConnectionSettings
         return idleTimeout;
     }
 
+    public boolean isReactorEnabled()
+    {
+        return reactorEnabled;
+    }
+
+    public int getReactorThreads()
+    {
+        return reactorThreads;
+    }
+
+    public boolean isDirectInputEnabled()
+    {
+        return directInputEnabled;
+    }
+
+    public int getDispatcherThreads()
+    {
+        return dispatcherThreads;
+    }
+
+    public int getDispatchQueueSize()
+    {
+        return dispatchQueueSize;
+    }
+
+    public Executor getDispatchExecutor()
+    {
+        return dispatchExecutor;
+    }
+
 }
\ No newline at end of file
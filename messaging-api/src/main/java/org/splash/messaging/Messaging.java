@@ -121,7 +121,9 @@ public class Messaging
 
     /**
      * Connects to the remote peer identified by the given @see
-     * ConnectionSettings.
+     * ConnectionSettings. Blocks until the remote peer opens the Connection or
+     * the connect timeout expires, in which case a {@link TimeoutException}
+     * is thrown.
      * 
      * @param url
      *            : See above for URL formats.
@@ -138,6 +140,27 @@ public class Messaging
         return MESSAGING_FACTORY.connect(settings, handlers);
     }
 
+    /**
+     * Same as {@link #connect(ConnectionSettings, EventHandler...)}, except it
+     * returns as soon as the network connection is established without
+     * waiting for the remote peer to open the Connection. The handlers are
+     * notified via {@link EventHandler#onConnectionOpen(Connection)} once the
+     * peer has opened the Connection.
+     * 
+     * @param settings
+     * @param handlers
+     *            : The handler(s) responsible for handling messaging events. @see
+     *            EventHandler
+     * @return : Connection
+     * @throws MessagingException
+     * @throws NetworkException
+     */
+    public static Connection connectAsync(ConnectionSettings settings, EventHandler... handlers)
+            throws MessagingException, NetworkException
+    {
+        return MESSAGING_FACTORY.connectAsync(settings, handlers);
+    }
+
     /**
      * Binds to the socket identified by the host:port given in the @see
      * ConnectionSettings and listens for incoming messages.
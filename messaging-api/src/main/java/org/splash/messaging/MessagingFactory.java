@@ -30,6 +30,8 @@ public interface MessagingFactory
 
     Connection connect(ConnectionSettings settings, EventHandler ... handlers) throws MessagingException, NetworkException;
 
+    Connection connectAsync(ConnectionSettings settings, EventHandler ... handlers) throws MessagingException, NetworkException;
+
     Server listen(ConnectionSettings settings, EventHandler ... handlers) throws MessagingException, NetworkException;
 
     Server listen(String host, int port, EventHandler ... handlers) throws MessagingException, NetworkException;
@@ -20,6 +20,8 @@
  */
 package org.splash.messaging;
 
+import java.util.List;
+
 /**
  * Represents a logical <i>link</i> where messages travel <u>outwards</u> from
  * the containers perspective.
@@ -64,6 +66,13 @@ public interface OutboundLink extends ContextAware
      */
     void offerCredits(int credits) throws MessagingException, NetworkException;
 
+    /**
+     * The credit the peer has granted the link, less the messages sent on it
+     * since, including those handed to the link that are yet to be
+     * transferred.
+     */
+    int getCredit();
+
     /**
      * Outstanding message deliveries that the peer has not yet confirmed as
      * settled.
@@ -92,6 +101,41 @@ public interface OutboundLink extends ContextAware
      */
     Tracker send(Message msg) throws MessageFormatException, MessagingException, NetworkException;
 
+    /**
+     * Sends a received message on as it was received, without setting its
+     * address. A message none of which has been accessed is passed on
+     * without being decoded or encoded. Any other message is encoded as by
+     * {@link #send(Message)}.
+     * 
+     * @param msg
+     *            {@link Message} to be sent.
+     * 
+     * @return A {@link Tracker} object that can be used to track the status of
+     *         the message delivery.
+     * 
+     * @see #send(Message)
+     */
+    Tracker relay(Message msg) throws MessageFormatException, MessagingException, NetworkException;
+
+    /**
+     * Sends the message once to each of the given addresses, setting it as
+     * the <i>to</i> address of each delivery. The message is encoded once,
+     * with only its properties encoded again for each address, and is left
+     * with the address it had.
+     * 
+     * @param msg
+     *            {@link Message} to be sent.
+     * 
+     * @param addresses
+     *            The addresses the message is sent to.
+     * 
+     * @return A {@link Tracker} for each address, in the same order.
+     * 
+     * @see #send(Message)
+     */
+    List<Tracker> send(Message msg, List<String> addresses) throws MessageFormatException, MessagingException,
+            NetworkException;
+
     /**
      * Close the Link and free any resources associated with it.
      */
@@ -23,6 +23,7 @@ package org.splash.messaging.proton;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.qpid.proton.engine.Collector;
@@ -38,6 +39,7 @@ import org.splash.messaging.MessagingException;
 import org.splash.messaging.NetworkException;
 import org.splash.messaging.ReasonCode;
 import org.splash.messaging.TimeoutException;
+import org.splash.util.ConditionManager;
 
 abstract class BaseConnection extends ContextAwareImpl implements org.splash.messaging.Connection, Action
 {
@@ -55,29 +57,61 @@ abstract class BaseConnection extends ContextAwareImpl implements org.splash.mes
 
     AtomicBoolean _connected = new AtomicBoolean(false);
 
-    final Object _lock = new Object();
+    // Owns the engine, see EventLoop
+    EventLoop _loop;
+
+    // Null if handlers are invoked on the event loop, see Dispatcher
+    Executor _dispatchExecutor;
+
+    // For connection and session events
+    Dispatcher.SerialQueue _dispatchQueue;
+
+    // Only used on the event loop
+    final Events.Batch _batch = new Events.Batch();
 
     final Map<Session, SessionImpl> _sessions = new HashMap<Session, SessionImpl>();
 
+    // Becomes true once the peer has opened the connection
+    final ConditionManager _remoteOpen = new ConditionManager(false);
+
     void init() throws NetworkException
     {
-        synchronized (_lock)
+        execute(new Runnable()
         {
-            _collector = Collector.Factory.create();
-            _transport = Transport.Factory.create();
-            _connection = Connection.Factory.create();
-            String id = _settings.getId();
-            _connection.collect(_collector);
-            _connection.setContainer(id == null || id.trim().equals("") ? UUID.randomUUID().toString() : id);
-            _connection.setHostname(_settings.getHost());
-            _transport.bind(_connection);
-            Sasl sasl = _transport.sasl();
-            sasl.client();
-            sasl.setMechanisms(new String[] { "ANONYMOUS" });
-            _connection.open();
-            _connected.set(true);
-            write();
-        }
+            @Override
+            public void run()
+            {
+                open();
+            }
+        });
+    }
+
+    private void open()
+    {
+        _collector = Collector.Factory.create();
+        _transport = Transport.Factory.create();
+        _connection = Connection.Factory.create();
+        String id = _settings.getId();
+        _connection.collect(_collector);
+        _connection.setContext(this);
+        _connection.setContainer(id == null || id.trim().equals("") ? UUID.randomUUID().toString() : id);
+        _connection.setHostname(_settings.getHost());
+        _transport.bind(_connection);
+        Sasl sasl = _transport.sasl();
+        sasl.client();
+        sasl.setMechanisms(new String[] { "ANONYMOUS" });
+        _connection.open();
+        _connected.set(true);
+        write();
+    }
+
+    /**
+     * Runs the command on the event loop of this connection. Anything that
+     * touches the proton engine must go through here.
+     */
+    void execute(Runnable command)
+    {
+        _loop.execute(command);
     }
 
     void processEvents()
@@ -87,9 +121,14 @@ abstract class BaseConnection extends ContextAwareImpl implements org.splash.mes
             Event event = _collector.peek();
             if (event == null)
                 break;
-            Events.dispatchProtonEvents(event, _handlers);
+            if (event.getType() == Event.Type.CONNECTION_REMOTE_OPEN)
+            {
+                _remoteOpen.setValueAndNotify(true);
+            }
+            Events.dispatchProtonEvents(event, _handlers, _dispatchQueue, _batch);
             _collector.pop();
         }
+        _batch.flush();
     }
     
     @Override
@@ -113,70 +152,71 @@ abstract class BaseConnection extends ContextAwareImpl implements org.splash.mes
     @Override
     public org.splash.messaging.Session createSession() throws NetworkException, MessagingException, TimeoutException
     {
-        synchronized (_lock)
+        if (_closed.get())
+        {
+            throw new MessagingException("Connection is closed");
+        }
+        final SessionImpl session = new SessionImpl(this);
+        execute(new Runnable()
         {
-            if (_closed.get())
+            @Override
+            public void run()
             {
-                throw new MessagingException("Connection is closed");
+                Session ssn = _connection.session();
+                session.bind(ssn);
+                _sessions.put(ssn, session);
+                session.open();
             }
-            Session ssn = _connection.session();
-            SessionImpl session = new SessionImpl(this, ssn);
-            _sessions.put(ssn, session);
-            session.init();
-            return session;
-        }
+        });
+        return session;
     }
 
     @Override
     public void accept() throws NetworkException
     {
-        synchronized (_lock)
-        {
-            init();
-        }
+        init();
     }
 
     @Override
     public void reject(ReasonCode code, String desc, String alternateAddress)
     {
-        synchronized (_lock)
-        {
-            // TODO;
-        }
+        // TODO;
     }
 
     @Override
     public void close() throws NetworkException, MessagingException, TimeoutException
     {
-        synchronized (_lock)
+        if (_closed.compareAndSet(false, true))
         {
-            if (!_closed.get())
+            execute(new Runnable()
             {
-                _closed.set(true);
-                if (_connected.get())
+                @Override
+                public void run()
                 {
-                    for (Session ssn : _sessions.keySet())
+                    if (_connected.get())
                     {
-                        _sessions.get(ssn).closeImpl();
+                        for (Session ssn : _sessions.keySet())
+                        {
+                            _sessions.get(ssn).closeImpl();
+                        }
+                        _sessions.clear();
+                        _connection.close();
+                        write();
+                        closeNetworkConnection();
                     }
-                    _sessions.clear();
-                    _connection.close();
-                    write();
-                    closeNetworkConnection();
                 }
-            }
+            });
         }
     }
 
+    // Invoked on the event loop
     void removeSession(Session ssn)
     {
-        synchronized (_lock)
-        {
-            _sessions.remove(ssn);
-        }
+        _sessions.remove(ssn);
     }
     
-    abstract void write() throws NetworkException;
+    // Invoked on the event loop
+    abstract void write();
 
     abstract void closeNetworkConnection();
 }
\ No newline at end of file
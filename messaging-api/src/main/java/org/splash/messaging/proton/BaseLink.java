@@ -30,6 +30,7 @@ abstract class BaseLink extends ContextAwareImpl
 {
     String _address;
 
+    // Set on the event loop once the link has been created
     Link _link;
 
     SessionImpl _ssn;
@@ -38,11 +39,20 @@ abstract class BaseLink extends ContextAwareImpl
 
     boolean _dynamic = false;
 
-    BaseLink(SessionImpl ssn, String address, Link link)
+    // Keeps the events for this link in order
+    final Dispatcher.SerialQueue _dispatchQueue;
+
+    BaseLink(SessionImpl ssn, String address)
     {
         _address = address;
-        _link = link;
         _ssn = ssn;
+        _dispatchQueue = new Dispatcher.SerialQueue(ssn.getConnection()._dispatchExecutor);
+    }
+
+    // Invoked on the event loop
+    void bind(Link link)
+    {
+        _link = link;
     }
 
     public String getAddress()
@@ -62,11 +72,20 @@ abstract class BaseLink extends ContextAwareImpl
 
     public void close() throws NetworkException
     {
-        closeImpl();
-        _ssn.removeLink(_link);
-        _ssn.getConnection().write();
+        _closed.set(true);
+        _ssn.getConnection().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                closeImpl();
+                _ssn.removeLink(_link);
+                _ssn.getConnection().write();
+            }
+        });
     }
 
+    // Invoked on the event loop
     void closeImpl()
     {
         _closed.set(true);
@@ -82,4 +101,9 @@ abstract class BaseLink extends ContextAwareImpl
     {
         return _ssn;
     }
+
+    Dispatcher.SerialQueue getDispatchQueue()
+    {
+        return _dispatchQueue;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.proton;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.splash.messaging.ConnectionSettings;
+import org.splash.util.BufferPool;
+import org.splash.util.PooledBuffer;
+
+class BlockingNetworkConnection extends NetworkConnection implements Runnable
+{
+    private Socket _socket;
+
+    private int _bufferSize = 65535;
+
+    private Exception _exception;
+
+    private final WritableByteChannel _out;
+
+    private final Thread _receiverThread;
+
+    private final ByteReceiver _receiver;
+
+    private final AtomicBoolean _closed = new AtomicBoolean(false);
+
+    private final ConnectionSettings _settings;
+
+    BlockingNetworkConnection(ConnectionSettings settings, ByteReceiver receiver)
+    {
+        this(settings, new Socket(), receiver);
+    }
+
+    BlockingNetworkConnection(ConnectionSettings settings, Socket socket, ByteReceiver receiver)
+    {
+        _socket = socket;
+        _settings = settings;
+        if (!_socket.isConnected())
+        {
+            try
+            {
+                InetAddress address = InetAddress.getByName(_settings.getHost());
+                _socket.connect(new InetSocketAddress(address, _settings.getPort()),
+                        (int) _settings.getConnectTimeout());
+            }
+            catch (UnknownHostException e)
+            {
+                throw new RuntimeException("Error connecting to given host", e);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("IO error when connecting to peer", e);
+            }
+        }
+        try
+        {
+            _socket.setReuseAddress(true);
+            _socket.setTcpNoDelay(true);
+            _socket.setSendBufferSize(_bufferSize);
+            _socket.setReceiveBufferSize(_bufferSize);
+            _out = Channels.newChannel(_socket.getOutputStream());
+        }
+        catch (SocketException e)
+        {
+            throw new RuntimeException("Error setting socket parameters", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("IO error when connecting to peer", e);
+        }
+
+        _receiver = receiver;
+        _receiverThread = new Thread(this);
+    }
+
+    @Override
+    public void send(ByteBuffer buf) throws IOException
+    {
+        if (_closed.get())
+        {
+            throw new RuntimeException("Connection is closed");
+        }
+        _out.write(buf);
+    }
+
+    /**
+     * Copies the chunks of output the transport hands out into one pooled
+     * buffer, so that a flush costs a single write to the socket rather than
+     * one per chunk. Output larger than the buffer is written as it fills.
+     */
+    @Override
+    public void write(ByteSource source) throws IOException
+    {
+        ByteBuffer data = source.head();
+        if (!data.hasRemaining())
+        {
+            return;
+        }
+        PooledBuffer buffer = BufferPool.get().acquire(_bufferSize);
+        try
+        {
+            byte[] array = buffer.array();
+            int capacity = buffer.capacity();
+            int length = 0;
+            while (data.hasRemaining())
+            {
+                int size = Math.min(data.remaining(), capacity - length);
+                data.get(array, length, size);
+                source.pop(size);
+                length += size;
+                if (length == capacity)
+                {
+                    send(buffer.wrap(0, length));
+                    length = 0;
+                }
+                data = source.head();
+            }
+            if (length > 0)
+            {
+                send(buffer.wrap(0, length));
+            }
+        }
+        finally
+        {
+            buffer.release();
+        }
+    }
+
+    @Override
+    public void start()
+    {
+        _receiverThread.start();
+    }
+
+    public void run()
+    {
+        // Buffers are taken from the shared pool for each read and returned
+        // as soon as the receiver has copied the data, so a connection blocked
+        // on a read only holds a buffer sized to its recent traffic.
+        BufferPool pool = BufferPool.get();
+        BufferPool.SizeEstimator estimator = pool.newSizeEstimator(_bufferSize);
+        try
+        {
+            InputStream in = _socket.getInputStream();
+            int read = 0;
+            while (read != -1)
+            {
+                try
+                {
+                    while (read != -1)
+                    {
+                        PooledBuffer buffer = pool.acquire(estimator.next());
+                        try
+                        {
+                            read = in.read(buffer.array(), 0, estimator.next());
+                            if (read > 0)
+                            {
+                                estimator.record(read);
+                                _receiver.received(buffer.wrap(0, read));
+                            }
+                        }
+                        finally
+                        {
+                            buffer.release();
+                        }
+                    }
+                }
+                catch (SocketTimeoutException e)
+                {
+                    // TODO
+                }
+            }
+            if (!_closed.getAndSet(true))
+            {
+                _receiver.exception(new EOFException("Connection closed by peer"));
+            }
+        }
+        catch (Exception e)
+        {
+            _exception = e;
+            if (!_closed.get())
+            {
+                _closed.set(true);
+                _receiver.exception(e);
+            }
+        }
+        finally
+        {
+            try
+            {
+                _socket.close();
+            }
+            catch (Exception e)
+            {
+                System.out.println("Error closing socket");
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        _closed.set(true);
+        try
+        {
+            _socket.shutdownInput();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
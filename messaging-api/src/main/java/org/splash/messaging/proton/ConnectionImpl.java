@@ -26,20 +26,46 @@ import java.nio.ByteBuffer;
 import org.splash.messaging.ConnectionSettings;
 import org.splash.messaging.EventHandler;
 import org.splash.messaging.NetworkException;
+import org.splash.messaging.TimeoutException;
+import org.splash.util.BufferPool;
+import org.splash.util.ConditionManagerTimeoutException;
+import org.splash.util.PooledBuffer;
 
-class ConnectionImpl extends BaseConnection implements NetworkConnection.ByteReceiver
+class ConnectionImpl extends BaseConnection implements NetworkConnection.DirectByteReceiver,
+        NetworkConnection.ByteSource
 {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final long FAILURE_CHECK_INTERVAL = 100;
+
     private NetworkConnection _network;
 
+    private volatile Exception _networkException;
+
     ConnectionImpl(ConnectionSettings settings, EventHandler ... handlers)
     {
         _settings = settings;
         _handlers = handlers;
+        _dispatchExecutor = Dispatcher.getExecutor(settings);
+        _dispatchQueue = new Dispatcher.SerialQueue(_dispatchExecutor);
     }
 
+    private ByteBuffer _input;
+
+    // Processes _input, reused as input is only ever delivered by one thread
+    private final Runnable _inputTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            processInput(_input);
+        }
+    };
+
     void bind(NetworkConnection network) throws NetworkException
     {
         _network = network;
+        _loop = new EventLoop(network.getIoLoop());
     }
 
     @Override
@@ -47,34 +73,66 @@ class ConnectionImpl extends BaseConnection implements NetworkConnection.ByteRec
     {
         super.init();
         _network.start();
-        try
-        {
-            Thread.sleep(2000);
-        }
-        catch (InterruptedException e)
-        {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
     }
-    
-    @Override
-    void write()
+
+    /**
+     * Blocks until the peer opens the connection, the network connection fails
+     * or the connect timeout expires. The failure is checked between waits of
+     * at most FAILURE_CHECK_INTERVAL ms, as a failure reported just before a
+     * wait starts does not wake it.
+     */
+    void awaitOpen() throws NetworkException, TimeoutException
     {
-        while (_transport.pending() > 0)
+        long deadline = System.currentTimeMillis() + _settings.getConnectTimeout();
+        while (true)
         {
-            ByteBuffer data = _transport.getOutputBuffer();
+            if (_networkException != null)
+            {
+                throw new NetworkException("Network connection failed before the connection was opened",
+                        _networkException);
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                throw new TimeoutException(String.format("Connection to %s:%s was not opened within %s ms",
+                        _settings.getHost(), _settings.getPort(), _settings.getConnectTimeout()));
+            }
             try
             {
-                _network.send(data);
+                _remoteOpen.waitUntilTrue(Math.min(remaining, FAILURE_CHECK_INTERVAL));
+                return;
             }
-            catch (IOException e)
+            catch (ConditionManagerTimeoutException e)
             {
-                throw new RuntimeException("Exception writing to socket", e);
+                // Woken by a failure, or not open yet
             }
-            _transport.outputConsumed();
         }
     }
+    
+    @Override
+    void write()
+    {
+        try
+        {
+            _network.write(this);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Exception writing to socket", e);
+        }
+    }
+
+    @Override
+    public ByteBuffer head()
+    {
+        return _transport.pending() > 0 ? _transport.head() : EMPTY;
+    }
+
+    @Override
+    public void pop(int bytes)
+    {
+        _transport.pop(bytes);
+    }
 
     @Override
     void closeNetworkConnection()
@@ -84,6 +142,43 @@ class ConnectionImpl extends BaseConnection implements NetworkConnection.ByteRec
 
     @Override
     public void received(ByteBuffer data)
+    {
+        _input = data;
+        try
+        {
+            if (_loop.tryRun(_inputTask))
+            {
+                return;
+            }
+        }
+        finally
+        {
+            _input = null;
+        }
+
+        // The event loop is busy, hand it a copy as the data is only valid
+        // for the duration of this call.
+        final int length = data.remaining();
+        final PooledBuffer copy = BufferPool.get().acquire(length);
+        data.get(copy.array(), 0, length);
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    processInput(copy.wrap(0, length));
+                }
+                finally
+                {
+                    copy.release();
+                }
+            }
+        });
+    }
+
+    private void processInput(ByteBuffer data)
     {
         while (data.hasRemaining())
         {
@@ -99,9 +194,27 @@ class ConnectionImpl extends BaseConnection implements NetworkConnection.ByteRec
         write();
     }
 
+    // Direct input is only used with the reactor, whose thread owns the engine
+
+    @Override
+    public ByteBuffer getInputBuffer()
+    {
+        // Negative once the transport has closed for input
+        return _transport.capacity() > 0 ? _transport.getInputBuffer() : EMPTY;
+    }
+
+    @Override
+    public void processInput()
+    {
+        _transport.processInput();
+        processEvents();
+        write();
+    }
+
     @Override
     public void exception(Exception e)
     {
-                
+        _networkException = e;
+        _remoteOpen.wakeUpAndReturn();
     }
 }
\ No newline at end of file
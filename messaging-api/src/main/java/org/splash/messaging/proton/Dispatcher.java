@@ -0,0 +1,180 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.proton;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.splash.logging.Logger;
+import org.splash.messaging.ConnectionSettings;
+import org.splash.threading.Threading;
+
+/**
+ * Invokes the {@link org.splash.messaging.EventHandler} callbacks of a
+ * connection. By default they run on the I/O thread that produced the event.
+ * If an executor is configured, see
+ * {@link ConnectionSettings#setDispatchExecutor(Executor)} and
+ * {@link ConnectionSettings#setDispatcherThreads(int)}, they are handed to it
+ * via a {@link SerialQueue}, one per link plus one for connection and session
+ * events, so that events for the same link are still delivered in order.
+ * 
+ * The built in pool is shared by all connections in the JVM and sized by the
+ * ConnectionSettings of the first connection that uses it.
+ */
+final class Dispatcher
+{
+    private static final Logger _logger = Logger.get(Dispatcher.class);
+
+    private static Executor _sharedExecutor;
+
+    private Dispatcher()
+    {
+    }
+
+    /**
+     * Returns the executor to dispatch events for the given settings, or null
+     * if they are to be dispatched on the I/O thread.
+     */
+    static Executor getExecutor(ConnectionSettings settings)
+    {
+        if (settings.getDispatchExecutor() != null)
+        {
+            return settings.getDispatchExecutor();
+        }
+        else if (settings.getDispatcherThreads() > 0)
+        {
+            return getSharedExecutor(settings.getDispatcherThreads());
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    private static synchronized Executor getSharedExecutor(int threads)
+    {
+        if (_sharedExecutor == null)
+        {
+            _sharedExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                private final AtomicInteger _count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread;
+                    try
+                    {
+                        thread = Threading.getThreadFactory().createThread(r);
+                    }
+                    catch (Exception e)
+                    {
+                        throw new RuntimeException("Error creating dispatcher thread", e);
+                    }
+                    thread.setName("splash-dispatcher-" + _count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _sharedExecutor;
+    }
+
+    /**
+     * Runs tasks one at a time, in submission order, on the given executor.
+     * Tasks run inline if there is no executor. A busy queue yields the
+     * executor thread after {@link #MAX_BATCH} tasks so that other links are
+     * not starved.
+     */
+    static final class SerialQueue implements Executor
+    {
+        static final int MAX_BATCH = 64;
+
+        private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        private final AtomicInteger _pending = new AtomicInteger(0);
+
+        private final Executor _executor;
+
+        private final Runnable _drainTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        };
+
+        SerialQueue(Executor executor)
+        {
+            _executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task)
+        {
+            if (_executor == null)
+            {
+                run(task);
+                return;
+            }
+            _tasks.add(task);
+            if (_pending.getAndIncrement() == 0)
+            {
+                _executor.execute(_drainTask);
+            }
+        }
+
+        boolean isInline()
+        {
+            return _executor == null;
+        }
+
+        private void drain()
+        {
+            for (int i = 0; i < MAX_BATCH; i++)
+            {
+                run(_tasks.poll());
+                if (_pending.decrementAndGet() == 0)
+                {
+                    return;
+                }
+            }
+            _executor.execute(_drainTask);
+        }
+
+        private void run(Runnable task)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                _logger.error(e, "Error dispatching event %s", task);
+            }
+        }
+    }
+}
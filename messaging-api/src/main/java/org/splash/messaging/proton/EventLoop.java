@@ -0,0 +1,134 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.proton;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.splash.logging.Logger;
+
+/**
+ * Serializes all access to the proton engine of a connection. Application
+ * threads submit commands via {@link #execute(Runnable)} without taking any
+ * locks; the commands are run one at a time in submission order.
+ * <ul>
+ * <li>With a {@link Reactor.IoLoop} the commands are run by the reactor thread
+ * that also handles the I/O for the connection, which therefore owns the
+ * engine.</li>
+ * <li>Otherwise the thread that submits a command to an idle loop runs it,
+ * along with any commands submitted by other threads in the meantime.</li>
+ * </ul>
+ */
+final class EventLoop
+{
+    private static final Logger _logger = Logger.get(EventLoop.class);
+
+    private final Queue<Runnable> _commands = new ConcurrentLinkedQueue<Runnable>();
+
+    // Commands submitted but not yet completed. The thread that moves it away
+    // from zero runs the commands until it drops back to zero.
+    private final AtomicInteger _pending = new AtomicInteger(0);
+
+    private final Reactor.IoLoop _ioLoop;
+
+    private final Runnable _drainTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain(_commands.poll());
+        }
+    };
+
+    EventLoop(Reactor.IoLoop ioLoop)
+    {
+        _ioLoop = ioLoop;
+    }
+
+    void execute(Runnable command)
+    {
+        _commands.add(command);
+        if (_pending.getAndIncrement() == 0)
+        {
+            if (_ioLoop == null)
+            {
+                drain(_commands.poll());
+            }
+            else
+            {
+                _ioLoop.execute(_drainTask);
+            }
+        }
+    }
+
+    /**
+     * Runs the command on the calling thread if it may access the engine
+     * right away, otherwise returns false without running it. Used for input,
+     * which is only valid for the duration of the call.
+     */
+    boolean tryRun(Runnable command)
+    {
+        if (_ioLoop != null)
+        {
+            if (!_ioLoop.inLoop())
+            {
+                return false;
+            }
+            // Commands are only ever run by this thread, and not while it is
+            // handling I/O.
+            run(command);
+            return true;
+        }
+        if (!_pending.compareAndSet(0, 1))
+        {
+            return false;
+        }
+        drain(command);
+        return true;
+    }
+
+    private void drain(Runnable first)
+    {
+        Runnable command = first;
+        while (true)
+        {
+            run(command);
+            if (_pending.decrementAndGet() == 0)
+            {
+                return;
+            }
+            command = _commands.poll();
+        }
+    }
+
+    private void run(Runnable command)
+    {
+        try
+        {
+            command.run();
+        }
+        catch (RuntimeException e)
+        {
+            _logger.error(e, "Error executing connection command %s", command);
+        }
+    }
+}
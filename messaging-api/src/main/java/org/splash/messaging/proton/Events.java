@@ -20,17 +20,20 @@
  */
 package org.splash.messaging.proton;
 
-import org.apache.qpid.proton.Proton;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.qpid.proton.engine.Delivery;
 import org.apache.qpid.proton.engine.Event;
 import org.apache.qpid.proton.engine.Link;
 import org.apache.qpid.proton.engine.Receiver;
 import org.apache.qpid.proton.engine.Sender;
-import org.apache.qpid.proton.message.Message;
 import org.splash.logging.Logger;
+import org.splash.messaging.BatchEventHandler;
 import org.splash.messaging.Connection;
 import org.splash.messaging.EventHandler;
 import org.splash.messaging.InboundLink;
+import org.splash.messaging.Message;
 import org.splash.messaging.OutboundLink;
 
 public final class Events
@@ -41,96 +44,53 @@ public final class Events
     {
     }
 
-    public static void dispatchProtonEvents(Event event, EventHandler[] handlers)
+    /**
+     * Invoked on the event loop. Everything the handlers need is taken from
+     * the event here, as it is recycled once this returns, and the handlers
+     * are then invoked via the dispatch queue of the link the event belongs
+     * to, or the given queue for connection and session events. Messages are
+     * gathered into the batch, which is dispatched before any other event.
+     */
+    static void dispatchProtonEvents(Event event, EventHandler[] handlers, Dispatcher.SerialQueue queue, Batch batch)
     {
         try
         {
             if (handlers.length < 1)
                 return;
+            if (event.getType() != Event.Type.DELIVERY || !(event.getLink() instanceof Receiver))
+            {
+                batch.flush();
+            }
             switch (event.getType())
             {
             case CONNECTION_REMOTE_OPEN:
-                Connection con = (Connection) event.getConnection().getContext();
-                for (EventHandler handler : handlers)
-                {
-                    handler.onConnectionOpen(con);
-                }
-                break;
             case CONNECTION_FINAL:
-                con = (Connection) event.getConnection().getContext();
-                for (EventHandler handler : handlers)
-                {
-                    handler.onConnectionClosed(con);
-                }
+                queue.execute(new Dispatch(event.getType(), handlers, event.getConnection().getContext()));
                 break;
             case SESSION_REMOTE_OPEN:
-                SessionImpl ssn = (SessionImpl) event.getSession().getContext();
-                for (EventHandler handler : handlers)
-                {
-                    handler.onSession(ssn, ssn);
-                }
-                break;
             case SESSION_FINAL:
-                ssn = (SessionImpl) event.getSession().getContext();
-                for (EventHandler handler : handlers)
-                {
-                    handler.onSessionClosed(ssn);
-                }
+                queue.execute(new Dispatch(event.getType(), handlers, event.getSession().getContext()));
                 break;
             case LINK_REMOTE_OPEN:
-                Link link = event.getLink();
-                if (link instanceof Receiver)
-                {
-                    InboundLinkImpl inboundLink = (InboundLinkImpl) link.getContext();
-                    for (EventHandler handler : handlers)
-                    {
-                        handler.onInboundLink(inboundLink, inboundLink);
-                    }
-                }
-                else
-                {
-                    OutboundLinkImpl outboundLink = (OutboundLinkImpl) link.getContext();
-                    for (EventHandler handler : handlers)
-                    {
-                        handler.onOutboundLink(outboundLink, outboundLink);
-                    }
-                }
+            case LINK_FINAL:
+                BaseLink link = (BaseLink) event.getLink().getContext();
+                queueFor(link, queue).execute(new Dispatch(event.getType(), handlers, link));
                 break;
             case LINK_FLOW:
-                link = event.getLink();
-                if (link instanceof Sender)
+                if (event.getLink() instanceof Sender)
                 {
-                    OutboundLink outboundLink = (OutboundLink) link.getContext();
-                    for (EventHandler handler : handlers)
-                    {
-                        handler.onOutboundLinkCredit(outboundLink, link.getCredit());
-                    }
-                }
-                break;
-            case LINK_FINAL:
-                link = event.getLink();
-                if (link instanceof Receiver)
-                {
-                    InboundLink inboundLink = (InboundLink) link.getContext();
-                    for (EventHandler handler : handlers)
-                    {
-                        handler.onInboundLinkClosed(inboundLink);
-                    }
-                }
-                else
-                {
-                    OutboundLink outboundLink = (OutboundLink) link.getContext();
-                    for (EventHandler handler : handlers)
-                    {
-                        handler.onOutboundLinkClosed(outboundLink);
-                    }
+                    link = (BaseLink) event.getLink().getContext();
+                    ((OutboundLinkImpl) link).flow(event.getLink().getCredit());
+                    Dispatch dispatch = new Dispatch(event.getType(), handlers, link);
+                    dispatch._credits = event.getLink().getCredit();
+                    queueFor(link, queue).execute(dispatch);
                 }
                 break;
             case TRANSPORT:
                 // TODO
                 break;
             case DELIVERY:
-                onDelivery(event.getDelivery(), handlers);
+                onDelivery(event.getDelivery(), handlers, batch);
                 break;
             default:
                 break;
@@ -143,7 +103,12 @@ public final class Events
         }
     }
 
-    static void onDelivery(Delivery d, EventHandler[] handlers)
+    private static Dispatcher.SerialQueue queueFor(BaseLink link, Dispatcher.SerialQueue queue)
+    {
+        return link == null ? queue : link.getDispatchQueue();
+    }
+
+    static void onDelivery(Delivery d, EventHandler[] handlers, Batch batch)
     {
         Link link = d.getLink();
         if (link instanceof Receiver)
@@ -156,18 +121,17 @@ public final class Events
             Receiver receiver = (Receiver) link;
             byte[] bytes = new byte[d.pending()];
             int read = receiver.recv(bytes, 0, bytes.length);
-            Message pMsg = Proton.message();
-            pMsg.decode(bytes, 0, read);
             receiver.advance();
 
             InboundLinkImpl inLink = (InboundLinkImpl) link.getContext();
             SessionImpl ssn = inLink.getSession();
-            MessageImpl msg = new InboundMessage(ssn.getID(), d.getTag(), ssn.getNextIncommingSequence(),
-                    d.isSettled(), pMsg);
-            for (EventHandler handler : handlers)
+            long sequence = ssn.getNextIncommingSequence();
+            if (!d.isSettled())
             {
-                handler.onMessage(inLink, msg);
+                ssn.addUnsettled(sequence, d);
+                inLink.incrementUnsettledCount();
             }
+            batch.add(inLink, handlers, new InboundMessage(ssn.getID(), d.getTag(), sequence, d.isSettled(), bytes, read));
         }
         else
         {
@@ -176,11 +140,192 @@ public final class Events
                 TrackerImpl tracker = (TrackerImpl) d.getContext();
                 tracker.setDisposition(d.getRemoteState());
                 tracker.markSettled();
-                for (EventHandler handler : handlers)
+                Dispatch dispatch = new Dispatch(Event.Type.DELIVERY, handlers, tracker);
+                ((BaseLink) link.getContext()).getDispatchQueue().execute(dispatch);
+            }
+        }
+    }
+
+    /**
+     * The messages received on one link since the last event for any other,
+     * which are handed to the handlers together. Used on the event loop only.
+     */
+    static final class Batch
+    {
+        private InboundLinkImpl _link;
+
+        private EventHandler[] _handlers;
+
+        private List<Message> _messages;
+
+        void add(InboundLinkImpl link, EventHandler[] handlers, MessageImpl msg)
+        {
+            if (link != _link)
+            {
+                flush();
+                _link = link;
+                _handlers = handlers;
+                _messages = new ArrayList<Message>();
+            }
+            _messages.add(msg);
+        }
+
+        void flush()
+        {
+            if (_link != null)
+            {
+                Dispatch dispatch = new Dispatch(Event.Type.DELIVERY, _handlers, _link);
+                dispatch._messages = _messages;
+                _link.getDispatchQueue().execute(dispatch);
+                _link = null;
+                _handlers = null;
+                _messages = null;
+            }
+        }
+    }
+
+    /**
+     * Invokes the handlers for a single event, or a batch of messages.
+     */
+    private static final class Dispatch implements Runnable
+    {
+        private final Event.Type _type;
+
+        private final EventHandler[] _handlers;
+
+        private final Object _target;
+
+        private int _credits;
+
+        private List<Message> _messages;
+
+        Dispatch(Event.Type type, EventHandler[] handlers, Object target)
+        {
+            _type = type;
+            _handlers = handlers;
+            _target = target;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                dispatch();
+            }
+            catch (Exception e)
+            {
+                _logger.error(e, "Error while dispatching event %s [%s]", _type, _target);
+                e.printStackTrace();
+            }
+        }
+
+        private void dispatch()
+        {
+            switch (_type)
+            {
+            case CONNECTION_REMOTE_OPEN:
+                for (EventHandler handler : _handlers)
+                {
+                    handler.onConnectionOpen((Connection) _target);
+                }
+                break;
+            case CONNECTION_FINAL:
+                for (EventHandler handler : _handlers)
+                {
+                    handler.onConnectionClosed((Connection) _target);
+                }
+                break;
+            case SESSION_REMOTE_OPEN:
+                SessionImpl ssn = (SessionImpl) _target;
+                for (EventHandler handler : _handlers)
+                {
+                    handler.onSession(ssn, ssn);
+                }
+                break;
+            case SESSION_FINAL:
+                for (EventHandler handler : _handlers)
+                {
+                    handler.onSessionClosed((SessionImpl) _target);
+                }
+                break;
+            case LINK_REMOTE_OPEN:
+                if (_target instanceof InboundLinkImpl)
+                {
+                    InboundLinkImpl inboundLink = (InboundLinkImpl) _target;
+                    for (EventHandler handler : _handlers)
+                    {
+                        handler.onInboundLink(inboundLink, inboundLink);
+                    }
+                }
+                else
                 {
-                    handler.onSettled(tracker);
+                    OutboundLinkImpl outboundLink = (OutboundLinkImpl) _target;
+                    for (EventHandler handler : _handlers)
+                    {
+                        handler.onOutboundLink(outboundLink, outboundLink);
+                    }
+                }
+                break;
+            case LINK_FLOW:
+                for (EventHandler handler : _handlers)
+                {
+                    handler.onOutboundLinkCredit((OutboundLink) _target, _credits);
+                }
+                break;
+            case LINK_FINAL:
+                if (_target instanceof InboundLink)
+                {
+                    for (EventHandler handler : _handlers)
+                    {
+                        handler.onInboundLinkClosed((InboundLink) _target);
+                    }
+                }
+                else
+                {
+                    for (EventHandler handler : _handlers)
+                    {
+                        handler.onOutboundLinkClosed((OutboundLink) _target);
+                    }
+                }
+                break;
+            case DELIVERY:
+                if (_target instanceof InboundLinkImpl)
+                {
+                    InboundLinkImpl inLink = (InboundLinkImpl) _target;
+                    try
+                    {
+                        for (EventHandler handler : _handlers)
+                        {
+                            if (handler instanceof BatchEventHandler)
+                            {
+                                ((BatchEventHandler) handler).onMessages(inLink, _messages);
+                            }
+                            else
+                            {
+                                for (int i = 0; i < _messages.size(); i++)
+                                {
+                                    handler.onMessage(inLink, _messages.get(i));
+                                }
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        inLink.messageProcessed(_messages.size());
+                    }
                 }
+                else
+                {
+                    for (EventHandler handler : _handlers)
+                    {
+                        handler.onSettled((TrackerImpl) _target);
+                    }
+                }
+                break;
+            default:
+                break;
             }
         }
     }
-}
\ No newline at end of file
+}
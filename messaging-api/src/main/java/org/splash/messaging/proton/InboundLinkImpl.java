@@ -20,9 +20,9 @@
  */
 package org.splash.messaging.proton;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.qpid.proton.engine.Link;
 import org.apache.qpid.proton.engine.Receiver;
 import org.splash.messaging.Action;
 import org.splash.messaging.CreditMode;
@@ -37,37 +37,98 @@ class InboundLinkImpl extends BaseLink implements Action, InboundLink
 
     private CreditMode _creditMode;
 
-    private int _credits = 0;
+    private volatile int _credits = 0;
 
     private AtomicInteger _unsettled = new AtomicInteger(0);
 
-    InboundLinkImpl(SessionImpl ssn, String address, Link link, CreditMode creditMode)
+    // Credit issued for messages that have not yet been through the handlers,
+    // which bounds the messages queued for dispatch in AUTO mode.
+    private final AtomicInteger _outstanding = new AtomicInteger(0);
+
+    private final int _queueCapacity;
+
+    private final AtomicBoolean _replenishScheduled = new AtomicBoolean(false);
+
+    private final Runnable _replenishTask = new Runnable()
     {
-        super(ssn, address, link);
+        @Override
+        public void run()
+        {
+            _replenishScheduled.set(false);
+            replenish();
+        }
+    };
+
+    InboundLinkImpl(SessionImpl ssn, String address, CreditMode creditMode)
+    {
+        super(ssn, address);
         _creditMode = creditMode;
+        BaseConnection conn = ssn.getConnection();
+        _queueCapacity = conn._dispatchExecutor == null ? Integer.MAX_VALUE : conn._settings.getDispatchQueueSize();
     }
 
     @Override
     void init() throws NetworkException
     {
-        _link.open();
-        if (_creditMode == CreditMode.AUTO && DEFAULT_CREDITS > 0)
+        _ssn.getConnection().execute(new Runnable()
         {
-            _credits = DEFAULT_CREDITS;
-            ((Receiver) _link).flow(_credits);
-        }
-        _ssn.getConnection().write();
+            @Override
+            public void run()
+            {
+                _link.open();
+                if (_creditMode == CreditMode.AUTO && DEFAULT_CREDITS > 0)
+                {
+                    _credits = DEFAULT_CREDITS;
+                    flow(getWindow());
+                }
+                _ssn.getConnection().write();
+            }
+        });
     }
 
-    void issueCredits(int credits, boolean drain) throws NetworkException
+    void issueCredits(final int credits, final boolean drain) throws NetworkException
     {
-        Receiver receiver = (Receiver) _link;
-        if (drain)
+        _ssn.getConnection().execute(new Runnable()
         {
-            //receiver.setDrain(true);
+            @Override
+            public void run()
+            {
+                if (drain)
+                {
+                    //receiver.setDrain(true);
+                }
+                flow(credits);
+                _ssn.getConnection().write();
+            }
+        });
+    }
+
+    // Invoked on the event loop
+    private void flow(int credits)
+    {
+        ((Receiver) _link).flow(credits);
+        _outstanding.addAndGet(credits);
+    }
+
+    // Invoked on the event loop, tops the credit up to the window
+    private void replenish()
+    {
+        int credits = getWindow() - _outstanding.get();
+        if (credits > 0)
+        {
+            flow(credits);
+            _ssn.getConnection().write();
         }
-        receiver.flow(credits);
-        _ssn.getConnection().write();
+    }
+
+    private int getWindow()
+    {
+        return Math.min(_credits, _queueCapacity);
+    }
+
+    void incrementUnsettledCount()
+    {
+        _unsettled.incrementAndGet();
     }
 
     void decrementUnsettledCount()
@@ -75,18 +136,19 @@ class InboundLinkImpl extends BaseLink implements Action, InboundLink
         _unsettled.decrementAndGet();
     }
 
-    void issuePostReceiveCredit() throws NetworkException
+    /**
+     * Invoked once the handlers are done with messages. In AUTO mode the
+     * credit is replenished once half of the window has been consumed, so a
+     * slow handler holds back the sender instead of growing the dispatch
+     * queue.
+     */
+    void messageProcessed(int count)
     {
-        if (_creditMode == CreditMode.AUTO)
+        int outstanding = _outstanding.addAndGet(-count);
+        if (_creditMode == CreditMode.AUTO && outstanding <= getWindow() / 2
+                && _replenishScheduled.compareAndSet(false, true))
         {
-            if (_credits == 1)
-            {
-                issueCredits(1, false);
-            }
-            else if (_unsettled.get() < _credits / 2)
-            {
-                issueCredits(_credits - _unsettled.get(), false);
-            }
+            _ssn.getConnection().execute(_replenishTask);
         }
     }
 
@@ -112,7 +174,14 @@ class InboundLinkImpl extends BaseLink implements Action, InboundLink
             throw new MessagingException("Capacity cannot be negative");
         }
         _credits = credits;
-        issueCredits(_credits, _creditMode == CreditMode.AUTO);
+        if (_creditMode == CreditMode.AUTO)
+        {
+            _ssn.getConnection().execute(_replenishTask);
+        }
+        else
+        {
+            issueCredits(_credits, false);
+        }
     }
 
     @Override
@@ -20,10 +20,21 @@
  */
 package org.splash.messaging.proton;
 
+import java.nio.BufferOverflowException;
+
+import org.apache.qpid.proton.Proton;
 import org.apache.qpid.proton.message.Message;
 
+/**
+ * A received message. It keeps the encoded bytes and decodes each section
+ * only when it is first accessed, so that a handler which only looks at the
+ * address or an annotation does not pay for decoding the body. Like the
+ * proton Message it wraps, it is not thread safe.
+ */
 public class InboundMessage extends MessageImpl
 {
+    private static final int ALL_SECTIONS = (1 << MessageSections.COUNT) - 1;
+
     private String _ssnID;
 
     private byte[] _deliveryTag;
@@ -32,12 +43,26 @@ public class InboundMessage extends MessageImpl
 
     private boolean _preSettled = false;
 
-    InboundMessage(String ssnID, byte[] deliveryTag, long sequence, boolean preSettled, Message msg)
+    private byte[] _encoded;
+
+    private final int _length;
+
+    // Scanned on first access, null afterwards if the message could not be
+    // scanned and was decoded as a whole instead
+    private MessageSections _sections;
+
+    // Bit per section already decoded into the proton message
+    private int _decoded = 0;
+
+    InboundMessage(String ssnID, byte[] deliveryTag, long sequence, boolean preSettled, byte[] encoded, int length)
     {
-        super(msg);
+        super(Proton.message());
         _ssnID = ssnID;
         _deliveryTag = deliveryTag;
         _sequence = sequence;
+        _preSettled = preSettled;
+        _encoded = encoded;
+        _length = length;
     }
 
     String getSessionID()
@@ -50,7 +75,12 @@ public class InboundMessage extends MessageImpl
         return _deliveryTag;
     }
 
-    long getSequence()
+    /**
+     * The position of the message among those received on its session,
+     * starting from 1, which is the order {@link org.splash.messaging.Session#CUMULATIVE}
+     * dispositions and settlements apply in.
+     */
+    public long getSequence()
     {
         return _sequence;
     }
@@ -59,4 +89,153 @@ public class InboundMessage extends MessageImpl
     {
         return _preSettled;
     }
-}
\ No newline at end of file
+
+    /**
+     * The bytes the message was received as, or null once any section has
+     * been accessed, as it may then have been modified.
+     */
+    byte[] getReceived()
+    {
+        return _decoded == 0 ? _encoded : null;
+    }
+
+    int getReceivedLength()
+    {
+        return _length;
+    }
+
+    @Override
+    Message getProtocolMessage()
+    {
+        for (int section = 0; section < MessageSections.COUNT; section++)
+        {
+            decode(section);
+        }
+        return super.getProtocolMessage();
+    }
+
+    @Override
+    Message header()
+    {
+        return decode(MessageSections.HEADER);
+    }
+
+    @Override
+    Message deliveryAnnotations()
+    {
+        return decode(MessageSections.DELIVERY_ANNOTATIONS);
+    }
+
+    @Override
+    Message messageAnnotations()
+    {
+        return decode(MessageSections.MESSAGE_ANNOTATIONS);
+    }
+
+    @Override
+    Message properties()
+    {
+        return decode(MessageSections.PROPERTIES);
+    }
+
+    @Override
+    Message applicationProperties()
+    {
+        return decode(MessageSections.APPLICATION_PROPERTIES);
+    }
+
+    @Override
+    Message body()
+    {
+        return decode(MessageSections.BODY);
+    }
+
+    /**
+     * Copies the sections that were never accessed straight from the
+     * received bytes, and only encodes the ones that were, as they may have
+     * been modified. Forwarding a message after changing its address
+     * therefore only encodes the properties section.
+     */
+    @Override
+    int encode(byte[] buffer, int offset, int length)
+    {
+        if (_decoded == 0)
+        {
+            return copy(0, _length, buffer, offset, length);
+        }
+        else if (_sections == null || _decoded == ALL_SECTIONS)
+        {
+            return super.encode(buffer, offset, length);
+        }
+        return encode(0, MessageSections.COUNT, buffer, offset, length);
+    }
+
+    @Override
+    int encode(int from, int to, byte[] buffer, int offset, int length)
+    {
+        if (_sections == null && _decoded != ALL_SECTIONS)
+        {
+            _sections = MessageSections.scan(_encoded, 0, _length);
+            if (_sections == null)
+            {
+                getProtocolMessage();
+            }
+        }
+
+        Message msg = super.getProtocolMessage();
+        int position = offset;
+        for (int section = from; section < to; section++)
+        {
+            int remaining = length - (position - offset);
+            if ((_decoded & (1 << section)) != 0)
+            {
+                position += MessageSections.encode(section, msg, buffer, position, remaining);
+            }
+            else if (_sections.contains(section))
+            {
+                position += copy(_sections.getOffset(section), _sections.getLength(section), buffer, position,
+                        remaining);
+            }
+        }
+        return position - offset;
+    }
+
+    private int copy(int from, int count, byte[] buffer, int offset, int length)
+    {
+        if (count > length)
+        {
+            throw new BufferOverflowException();
+        }
+        System.arraycopy(_encoded, from, buffer, offset, count);
+        return count;
+    }
+
+    private Message decode(int section)
+    {
+        Message msg = super.getProtocolMessage();
+        if ((_decoded & (1 << section)) != 0)
+        {
+            return msg;
+        }
+
+        if (_decoded == 0 && _sections == null)
+        {
+            _sections = MessageSections.scan(_encoded, 0, _length);
+            if (_sections == null)
+            {
+                msg.decode(_encoded, 0, _length);
+                _decoded = ALL_SECTIONS;
+            }
+        }
+        if (_sections != null)
+        {
+            _sections.decode(section, _encoded, msg);
+            _decoded |= 1 << section;
+        }
+        if (_decoded == ALL_SECTIONS)
+        {
+            _encoded = null;
+        }
+        return msg;
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Map;
 
 import org.apache.qpid.proton.Proton;
 import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.Symbol;
 import org.apache.qpid.proton.amqp.messaging.AmqpValue;
 import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
 import org.apache.qpid.proton.amqp.messaging.Data;
@@ -53,130 +54,200 @@ public class MessageImpl implements org.splash.messaging.Message
         return _msg;
     }
 
+    /**
+     * Encodes the message into the buffer and returns the number of bytes
+     * written. Throws BufferOverflowException if it does not fit.
+     */
+    int encode(byte[] buffer, int offset, int length)
+    {
+        return _msg.encode(buffer, offset, length);
+    }
+
+    /**
+     * Encodes the sections from the first up to, but not including, the last
+     * (see {@link MessageSections}) into the buffer and returns the number of
+     * bytes written. Throws BufferOverflowException if they do not fit.
+     */
+    int encode(int from, int to, byte[] buffer, int offset, int length)
+    {
+        int position = offset;
+        for (int section = from; section < to; section++)
+        {
+            position += MessageSections.encode(section, _msg, buffer, position, length - (position - offset));
+        }
+        return position - offset;
+    }
+
+    // The accessors below go through these, one per section of the message,
+    // so that subclasses can decode each section on first use.
+
+    Message header()
+    {
+        return _msg;
+    }
+
+    Message deliveryAnnotations()
+    {
+        return _msg;
+    }
+
+    Message messageAnnotations()
+    {
+        return _msg;
+    }
+
+    Message properties()
+    {
+        return _msg;
+    }
+
+    Message applicationProperties()
+    {
+        return _msg;
+    }
+
+    Message body()
+    {
+        return _msg;
+    }
+
     @Override
     public boolean isDurable()
     {
-        return _msg.isDurable();
+        return header().isDurable();
     }
 
     @Override
     public long getDeliveryCount()
     {
-        return _msg.getDeliveryCount();
+        return header().getDeliveryCount();
     }
 
     @Override
     public short getPriority()
     {
-        return _msg.getPriority();
+        return header().getPriority();
     }
 
     @Override
     public boolean isFirstAcquirer()
     {
-        return _msg.isFirstAcquirer();
+        return header().isFirstAcquirer();
     }
 
     @Override
     public long getTtl()
     {
-        return _msg.getTtl();
+        return header().getTtl();
     }
 
     @Override
     public Object getMessageId()
     {
-        return _msg.getMessageId();
+        return properties().getMessageId();
     }
 
     @Override
     public long getGroupSequence()
     {
-        return _msg.getGroupSequence();
+        return properties().getGroupSequence();
     }
 
     @Override
     public String getReplyToGroupId()
     {
-        return _msg.getReplyToGroupId();
+        return properties().getReplyToGroupId();
     }
 
     @Override
     public long getCreationTime()
     {
-        return _msg.getCreationTime();
+        return properties().getCreationTime();
     }
 
     @Override
     public String getAddress()
     {
-        return _msg.getAddress();
+        return properties().getAddress();
     }
 
     @Override
     public byte[] getUserId()
     {
-        return _msg.getUserId();
+        return properties().getUserId();
     }
 
     @Override
     public String getReplyTo()
     {
-        return _msg.getReplyTo();
+        return properties().getReplyTo();
     }
 
     @Override
     public String getGroupId()
     {
-        return _msg.getGroupId();
+        return properties().getGroupId();
     }
 
     @Override
     public String getContentType()
     {
-        return _msg.getContentType();
+        return properties().getContentType();
     }
 
     @Override
     public long getExpiryTime()
     {
-        return _msg.getExpiryTime();
+        return properties().getExpiryTime();
     }
 
     @Override
     public Object getCorrelationId()
     {
-        return _msg.getCorrelationId();
+        return properties().getCorrelationId();
     }
 
     @Override
     public String getContentEncoding()
     {
-        return _msg.getContentEncoding();
+        return properties().getContentEncoding();
     }
 
     @Override
     public String getSubject()
     {
-        return _msg.getSubject();
+        return properties().getSubject();
     }
 
     @Override
     public Map getMessageAnnotations()
     {
-        return _msg.getMessageAnnotations().getValue();
+        MessageAnnotations annotations = messageAnnotations().getMessageAnnotations();
+        return annotations == null ? null : annotations.getValue();
     }
 
     @Override
     public Map getDeliveryAnnotations()
     {
-        return _msg.getDeliveryAnnotations().getValue();
+        DeliveryAnnotations annotations = deliveryAnnotations().getDeliveryAnnotations();
+        return annotations == null ? null : annotations.getValue();
     }
 
     @Override
     public Map getApplicationProperties()
     {
-        return _msg.getApplicationProperties().getValue();
+        ApplicationProperties properties = applicationProperties().getApplicationProperties();
+        return properties == null ? null : properties.getValue();
+    }
+
+    /**
+     * Removes a message annotation, whose key is held as a symbol, and returns
+     * its value if it was present.
+     */
+    public Object removeMessageAnnotation(String key)
+    {
+        MessageAnnotations annotations = messageAnnotations().getMessageAnnotations();
+        return annotations == null ? null : annotations.getValue().remove(Symbol.valueOf(key));
     }
 
     @Override
@@ -184,15 +255,16 @@ public class MessageImpl implements org.splash.messaging.Message
     {
         if (_content == null)
         {
-            if (_msg.getBody() != null)
+            Message msg = body();
+            if (msg.getBody() != null)
             {
-                if (_msg.getBody() instanceof Data)
+                if (msg.getBody() instanceof Data)
                 {
-                    _content = ((Data) _msg.getBody()).getValue().asByteBuffer();
+                    _content = ((Data) msg.getBody()).getValue().asByteBuffer();
                 }
                 else
                 {
-                    _content = ((AmqpValue) _msg.getBody()).getValue();
+                    _content = ((AmqpValue) msg.getBody()).getValue();
                 }
             }
         }
@@ -202,129 +274,129 @@ public class MessageImpl implements org.splash.messaging.Message
     @Override
     public void setDurable(boolean durable)
     {
-        _msg.setDurable(durable);
+        header().setDurable(durable);
     }
 
     @Override
     public void setTtl(long ttl)
     {
-        _msg.setTtl(ttl);
+        header().setTtl(ttl);
     }
 
     @Override
     public void setDeliveryCount(long deliveryCount)
     {
-        _msg.setDeliveryCount(deliveryCount);
+        header().setDeliveryCount(deliveryCount);
     }
 
     @Override
     public void setFirstAcquirer(boolean firstAcquirer)
     {
-        _msg.setFirstAcquirer(firstAcquirer);
+        header().setFirstAcquirer(firstAcquirer);
     }
 
     @Override
     public void setPriority(short priority)
     {
-        _msg.setPriority(priority);
+        header().setPriority(priority);
     }
 
     @Override
     public void setGroupSequence(long groupSequence)
     {
-        _msg.setGroupSequence(groupSequence);
+        properties().setGroupSequence(groupSequence);
     }
 
     @Override
     public void setUserId(byte[] userId)
     {
-        _msg.setUserId(userId);
+        properties().setUserId(userId);
     }
 
     @Override
     public void setCreationTime(long creationTime)
     {
-        _msg.setCreationTime(creationTime);
+        properties().setCreationTime(creationTime);
     }
 
     @Override
     public void setSubject(String subject)
     {
-        _msg.setSubject(subject);
+        properties().setSubject(subject);
     }
 
     @Override
     public void setGroupId(String groupId)
     {
-        _msg.setGroupId(groupId);
+        properties().setGroupId(groupId);
     }
 
     @Override
     public void setAddress(String to)
     {
-        _msg.setAddress(to);
+        properties().setAddress(to);
     }
 
     @Override
     public void setExpiryTime(long absoluteExpiryTime)
     {
-        _msg.setExpiryTime(absoluteExpiryTime);
+        properties().setExpiryTime(absoluteExpiryTime);
     }
 
     @Override
     public void setReplyToGroupId(String replyToGroupId)
     {
-        _msg.setReplyToGroupId(replyToGroupId);
+        properties().setReplyToGroupId(replyToGroupId);
     }
 
     @Override
     public void setContentEncoding(String contentEncoding)
     {
-        _msg.setContentEncoding(contentEncoding);
+        properties().setContentEncoding(contentEncoding);
     }
 
     @Override
     public void setContentType(String contentType)
     {
-        _msg.setContentType(contentType);
+        properties().setContentType(contentType);
     }
 
     @Override
     public void setReplyTo(String replyTo)
     {
-        _msg.setReplyTo(replyTo);
+        properties().setReplyTo(replyTo);
     }
 
     @Override
     public void setCorrelationId(Object correlationId)
     {
-        _msg.setCorrelationId(correlationId);
+        properties().setCorrelationId(correlationId);
     }
 
     @Override
     public void setMessageId(Object messageId)
     {
-        _msg.setMessageId(messageId);
+        properties().setMessageId(messageId);
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public void setMessageAnnotations(Map map)
     {
-        _msg.setMessageAnnotations(new MessageAnnotations(map));
+        messageAnnotations().setMessageAnnotations(new MessageAnnotations(map));
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public void setDeliveryAnnotations(Map map)
     {
-        _msg.setDeliveryAnnotations(new DeliveryAnnotations(map));
+        deliveryAnnotations().setDeliveryAnnotations(new DeliveryAnnotations(map));
     }
 
     @Override
     public void setApplicationProperties(Map map)
     {
-        _msg.setApplicationProperties(new ApplicationProperties(map));
+        applicationProperties().setApplicationProperties(new ApplicationProperties(map));
     }
 
     @Override
@@ -332,11 +404,11 @@ public class MessageImpl implements org.splash.messaging.Message
     {
         if (content instanceof byte[])
         {
-            _msg.setBody(new Data(new Binary((byte[]) content)));
+            body().setBody(new Data(new Binary((byte[]) content)));
         }
         else
         {
-            _msg.setBody(new AmqpValue(content));
+            body().setBody(new AmqpValue(content));
         }
     }
 }
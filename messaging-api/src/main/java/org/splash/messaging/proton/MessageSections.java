@@ -0,0 +1,343 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.proton;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
+import org.apache.qpid.proton.amqp.messaging.DeliveryAnnotations;
+import org.apache.qpid.proton.amqp.messaging.Footer;
+import org.apache.qpid.proton.amqp.messaging.Header;
+import org.apache.qpid.proton.amqp.messaging.MessageAnnotations;
+import org.apache.qpid.proton.amqp.messaging.Properties;
+import org.apache.qpid.proton.amqp.messaging.Section;
+import org.apache.qpid.proton.codec.AMQPDefinedTypes;
+import org.apache.qpid.proton.codec.DecoderImpl;
+import org.apache.qpid.proton.codec.EncoderImpl;
+import org.apache.qpid.proton.message.Message;
+
+/**
+ * Locates the sections of an encoded AMQP message without decoding them, so
+ * that each section can be decoded on its own when it is first needed, and
+ * the sections that were never decoded can be copied as they are when the
+ * message is encoded again. The body spans all body sections, but only the
+ * first is decoded, as a proton Message holds a single body.
+ */
+final class MessageSections
+{
+    static final int HEADER = 0;
+
+    static final int DELIVERY_ANNOTATIONS = 1;
+
+    static final int MESSAGE_ANNOTATIONS = 2;
+
+    static final int PROPERTIES = 3;
+
+    static final int APPLICATION_PROPERTIES = 4;
+
+    static final int BODY = 5;
+
+    static final int FOOTER = 6;
+
+    static final int COUNT = 7;
+
+    private static final ThreadLocal<Codec> _codec = new ThreadLocal<Codec>()
+    {
+        @Override
+        protected Codec initialValue()
+        {
+            return new Codec();
+        }
+    };
+
+    private final int[] _offsets = new int[COUNT];
+
+    private final int[] _lengths = new int[COUNT];
+
+    private MessageSections()
+    {
+        Arrays.fill(_offsets, -1);
+    }
+
+    /**
+     * Returns null if the data is not laid out as expected, in which case the
+     * message should be decoded as a whole.
+     */
+    static MessageSections scan(byte[] data, int offset, int length)
+    {
+        MessageSections sections = new MessageSections();
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end)
+        {
+            int start = pos;
+            // Each section is a described type with a numeric descriptor
+            if (data[pos++] != 0x00 || pos >= end)
+            {
+                return null;
+            }
+            long code;
+            int type = data[pos++] & 0xff;
+            if (type == 0x53 && pos < end)
+            {
+                code = data[pos++] & 0xff;
+            }
+            else if (type == 0x80 && pos + 8 <= end)
+            {
+                code = ByteBuffer.wrap(data, pos, 8).getLong();
+                pos += 8;
+            }
+            else
+            {
+                return null;
+            }
+            pos = skip(data, pos, end);
+            int section = toSection(code);
+            if (pos < 0 || section < 0)
+            {
+                return null;
+            }
+            if (sections._offsets[section] < 0)
+            {
+                sections._offsets[section] = start;
+                sections._lengths[section] = pos - start;
+            }
+            else if (section == BODY)
+            {
+                sections._lengths[section] = pos - sections._offsets[section];
+            }
+        }
+        return sections;
+    }
+
+    private static int toSection(long code)
+    {
+        if (code == 0x70L)
+        {
+            return HEADER;
+        }
+        else if (code == 0x71L)
+        {
+            return DELIVERY_ANNOTATIONS;
+        }
+        else if (code == 0x72L)
+        {
+            return MESSAGE_ANNOTATIONS;
+        }
+        else if (code == 0x73L)
+        {
+            return PROPERTIES;
+        }
+        else if (code == 0x74L)
+        {
+            return APPLICATION_PROPERTIES;
+        }
+        else if (code >= 0x75L && code <= 0x77L)
+        {
+            return BODY;
+        }
+        else if (code == 0x78L)
+        {
+            return FOOTER;
+        }
+        else
+        {
+            return -1;
+        }
+    }
+
+    // Returns the position following the value at pos, or -1 if it runs past
+    // the end. The width of a value follows from its format code.
+    private static int skip(byte[] data, int pos, int end)
+    {
+        if (pos >= end)
+        {
+            return -1;
+        }
+        int code = data[pos++] & 0xff;
+        if (code == 0x00)
+        {
+            int value = skip(data, pos, end);
+            return value < 0 ? -1 : skip(data, value, end);
+        }
+
+        long next;
+        switch (code >> 4)
+        {
+        case 0x4:
+            next = pos;
+            break;
+        case 0x5:
+            next = pos + 1;
+            break;
+        case 0x6:
+            next = pos + 2;
+            break;
+        case 0x7:
+            next = pos + 4;
+            break;
+        case 0x8:
+            next = pos + 8;
+            break;
+        case 0x9:
+            next = pos + 16;
+            break;
+        case 0xa:
+        case 0xc:
+        case 0xe:
+            next = pos >= end ? -1 : pos + 1 + (data[pos] & 0xff);
+            break;
+        case 0xb:
+        case 0xd:
+        case 0xf:
+            next = pos + 4 > end ? -1 : pos + 4 + (ByteBuffer.wrap(data, pos, 4).getInt() & 0xffffffffL);
+            break;
+        default:
+            next = -1;
+        }
+        return next < 0 || next > end ? -1 : (int) next;
+    }
+
+    boolean contains(int section)
+    {
+        return _offsets[section] >= 0;
+    }
+
+    int getOffset(int section)
+    {
+        return _offsets[section];
+    }
+
+    int getLength(int section)
+    {
+        return _lengths[section];
+    }
+
+    /**
+     * Decodes a single section and sets it on the given message.
+     */
+    void decode(int section, byte[] data, Message msg)
+    {
+        if (!contains(section))
+        {
+            return;
+        }
+        DecoderImpl decoder = _codec.get()._decoder;
+        decoder.setByteBuffer(ByteBuffer.wrap(data, _offsets[section], _lengths[section]));
+        Object value;
+        try
+        {
+            value = decoder.readObject();
+        }
+        finally
+        {
+            decoder.setByteBuffer(null);
+        }
+
+        switch (section)
+        {
+        case HEADER:
+            msg.setHeader((Header) value);
+            break;
+        case DELIVERY_ANNOTATIONS:
+            msg.setDeliveryAnnotations((DeliveryAnnotations) value);
+            break;
+        case MESSAGE_ANNOTATIONS:
+            msg.setMessageAnnotations((MessageAnnotations) value);
+            break;
+        case PROPERTIES:
+            msg.setProperties((Properties) value);
+            break;
+        case APPLICATION_PROPERTIES:
+            msg.setApplicationProperties((ApplicationProperties) value);
+            break;
+        case BODY:
+            msg.setBody((Section) value);
+            break;
+        case FOOTER:
+            msg.setFooter((Footer) value);
+            break;
+        }
+    }
+
+    /**
+     * Encodes the given section of the message, if it has one, into the
+     * buffer and returns the number of bytes written. Throws
+     * BufferOverflowException if it does not fit.
+     */
+    static int encode(int section, Message msg, byte[] buffer, int offset, int length)
+    {
+        Object value;
+        switch (section)
+        {
+        case HEADER:
+            value = msg.getHeader();
+            break;
+        case DELIVERY_ANNOTATIONS:
+            value = msg.getDeliveryAnnotations();
+            break;
+        case MESSAGE_ANNOTATIONS:
+            value = msg.getMessageAnnotations();
+            break;
+        case PROPERTIES:
+            value = msg.getProperties();
+            break;
+        case APPLICATION_PROPERTIES:
+            value = msg.getApplicationProperties();
+            break;
+        case BODY:
+            value = msg.getBody();
+            break;
+        default:
+            value = msg.getFooter();
+            break;
+        }
+        if (value == null)
+        {
+            return 0;
+        }
+        EncoderImpl encoder = _codec.get()._encoder;
+        ByteBuffer out = ByteBuffer.wrap(buffer, offset, length);
+        try
+        {
+            encoder.setByteBuffer(out);
+            encoder.writeObject(value);
+        }
+        finally
+        {
+            encoder.setByteBuffer((ByteBuffer) null);
+        }
+        return out.position() - offset;
+    }
+
+    private static final class Codec
+    {
+        private final DecoderImpl _decoder = new DecoderImpl();
+
+        private final EncoderImpl _encoder = new EncoderImpl(_decoder);
+
+        Codec()
+        {
+            AMQPDefinedTypes.registerAllTypes(_decoder, _encoder);
+        }
+    }
+}
@@ -37,9 +37,31 @@ public class MessagingFactoryImpl implements MessagingFactory
     @Override
     public Connection connect(ConnectionSettings settings, EventHandler... handlers) throws MessagingException,
             NetworkException
+    {
+        ConnectionImpl connection = createConnection(settings, handlers);
+        try
+        {
+            connection.awaitOpen();
+        }
+        catch (MessagingException e)
+        {
+            connection.closeNetworkConnection();
+            throw e;
+        }
+        return connection;
+    }
+
+    @Override
+    public Connection connectAsync(ConnectionSettings settings, EventHandler... handlers) throws MessagingException,
+            NetworkException
+    {
+        return createConnection(settings, handlers);
+    }
+
+    ConnectionImpl createConnection(ConnectionSettings settings, EventHandler... handlers) throws NetworkException
     {
         ConnectionImpl connection = new ConnectionImpl(settings, handlers);
-        NetworkConnection network = new NetworkConnection(settings, connection);
+        NetworkConnection network = NetworkConnection.create(settings, connection);
         connection.bind(network);
         connection.init();
         return connection;
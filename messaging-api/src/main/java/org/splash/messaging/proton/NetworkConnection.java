@@ -21,174 +21,106 @@
 package org.splash.messaging.proton;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.splash.messaging.ConnectionSettings;
 
-public class NetworkConnection implements Runnable
+/**
+ * Moves bytes between a socket and a {@link ByteReceiver}. Two
+ * implementations are provided, selected via
+ * {@link ConnectionSettings#isReactorEnabled()}.
+ * <ul>
+ * <li>{@link BlockingNetworkConnection} : A dedicated reader thread per
+ * connection.</li>
+ * <li>{@link ReactorNetworkConnection} : Non blocking channels multiplexed
+ * over a fixed set of {@link Reactor} threads.</li>
+ * </ul>
+ */
+public abstract class NetworkConnection
 {
-    private Socket _socket;
-
-    private int _bufferSize = 65535;
-
-    private Exception _exception;
-
-    private final WritableByteChannel _out;
-
-    private final Thread _receiverThread;
-
-    private final ByteReceiver _receiver;
-
-    private final AtomicBoolean _closed = new AtomicBoolean(false);
-
-    private final ConnectionSettings _settings;
-
-    public NetworkConnection(ConnectionSettings settings, ByteReceiver receiver)
+    static NetworkConnection create(ConnectionSettings settings, ByteReceiver receiver)
     {
-        this(settings, new Socket(), receiver);
-    }
-
-    public NetworkConnection(ConnectionSettings settings, Socket socket, ByteReceiver receiver)
-    {
-        _socket = socket;
-        _settings = settings;
-        if (!_socket.isConnected())
-        {
-            try
-            {
-                InetAddress address = InetAddress.getByName(_settings.getHost());
-                _socket.connect(new InetSocketAddress(address, _settings.getPort()), 60 * 1000);
-            }
-            catch (UnknownHostException e)
-            {
-                throw new RuntimeException("Error connecting to given host", e);
-            }
-            catch (IOException e)
-            {
-                throw new RuntimeException("IO error when connecting to peer", e);
-            }
-        }
-        try
-        {
-            _socket.setReuseAddress(true);
-            _socket.setTcpNoDelay(true);
-            _socket.setSendBufferSize(_bufferSize);
-            _socket.setReceiveBufferSize(_bufferSize);
-            _out = Channels.newChannel(_socket.getOutputStream());
-        }
-        catch (SocketException e)
+        if (settings.isReactorEnabled())
         {
-            throw new RuntimeException("Error setting socket parameters", e);
+            return new ReactorNetworkConnection(settings, receiver);
         }
-        catch (IOException e)
+        else
         {
-            throw new RuntimeException("IO error when connecting to peer", e);
+            return new BlockingNetworkConnection(settings, receiver);
         }
-
-        _receiver = receiver;
-        _receiverThread = new Thread(this);
     }
 
-    public void send(ByteBuffer buf) throws IOException
+    static NetworkConnection create(ConnectionSettings settings, Socket socket, ByteReceiver receiver)
     {
-        if (_closed.get())
+        if (settings.isReactorEnabled() && socket.getChannel() != null)
+        {
+            return new ReactorNetworkConnection(settings, socket.getChannel(), receiver);
+        }
+        else
         {
-            throw new RuntimeException("Connection is closed");
+            return new BlockingNetworkConnection(settings, socket, receiver);
         }
-        _out.write(buf);
     }
 
-    public void start()
-    {
-        _receiverThread.start();
-    }
+    public abstract void send(ByteBuffer buf) throws IOException;
 
-    public void run()
-    {
-        final int threshold = _bufferSize / 2;
+    /**
+     * Writes the output pending in the given source. Implementations may
+     * defer the write and coalesce it with output produced later.
+     */
+    public abstract void write(ByteSource source) throws IOException;
 
-        // I set the read buffer size similar to SO_RCVBUF
-        // Haven't tested with a lower value to see if it's better or worse
-        byte[] buffer = new byte[_bufferSize];
-        try
-        {
-            InputStream in = _socket.getInputStream();
-            int read = 0;
-            int offset = 0;
-            while (read != -1)
-            {
-                try
-                {
-                    while ((read = in.read(buffer, offset, _bufferSize - offset)) != -1)
-                    {
-                        if (read > 0)
-                        {
-                            ByteBuffer b = ByteBuffer.wrap(buffer, offset, read);
-                            _receiver.received(b);
-                            offset += read;
-                            if (offset > threshold)
-                            {
-                                offset = 0;
-                                buffer = new byte[_bufferSize];
-                            }
-                        }
-                    }
-                }
-                catch (SocketTimeoutException e)
-                {
-                    // TODO
-                }
-            }
-        }
-        catch (Exception e)
-        {
-            _exception = e;
-            if (!_closed.get())
-            {
-                _closed.set(true);
-                _receiver.exception(e);
-            }
-        }
-        finally
-        {
-            try
-            {
-                _socket.close();
-            }
-            catch (Exception e)
-            {
-                System.out.println("Error closing socket");
-            }
-        }
-    }
+    public abstract void start();
 
-    public void close()
+    public abstract void close();
+
+    /**
+     * The reactor loop that delivers the received bytes, or null if they are
+     * delivered by a thread blocked on the socket.
+     */
+    Reactor.IoLoop getIoLoop()
     {
-        _closed.set(true);
-        try
-        {
-            _socket.shutdownInput();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-        }
+        return null;
     }
 
     public interface ByteReceiver
     {
+        /**
+         * The buffer is only valid for the duration of the call and is reused
+         * by the NetworkConnection once it returns. Any data needed
+         * afterwards must be copied.
+         */
         void received(ByteBuffer buf);
 
         void exception(Exception e);
     }
+
+    public interface ByteSource
+    {
+        /**
+         * The output pending, which may be an empty buffer. Bytes written from
+         * it must be acknowledged via {@link #pop(int)}.
+         */
+        ByteBuffer head();
+
+        void pop(int bytes);
+    }
+
+    /**
+     * A ByteReceiver that exposes its own input buffer, allowing the
+     * NetworkConnection to read from the socket straight into it instead of
+     * going through an intermediate buffer.
+     */
+    public interface DirectByteReceiver extends ByteReceiver
+    {
+        /**
+         * The buffer to read into. The bytes placed in it are consumed by the
+         * following call to {@link #processInput()}. It has no room left
+         * once the receiver takes no more input.
+         */
+        ByteBuffer getInputBuffer();
+
+        void processInput();
+    }
 }
@@ -20,7 +20,11 @@
  */
 package org.splash.messaging.proton;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.qpid.proton.amqp.transport.SenderSettleMode;
 import org.apache.qpid.proton.engine.Delivery;
@@ -34,34 +38,84 @@ import org.splash.messaging.NetworkException;
 import org.splash.messaging.OutboundLink;
 import org.splash.messaging.ReasonCode;
 import org.splash.messaging.Tracker;
+import org.splash.util.BufferPool;
+import org.splash.util.PooledBuffer;
 
 class OutboundLinkImpl extends BaseLink implements Action, OutboundLink
 {
+    // Consecutive messages that fit in half the encode buffer before it is
+    // shrunk
+    private static final int SHRINK_AFTER = 16;
 
-    OutboundLinkImpl(SessionImpl ssn, String address, Link link)
+    // Size of the pooled buffer messages are encoded into. Grows to fit the
+    // largest message sent on this link and shrinks back after a spike.
+    // Concurrent senders may race on these, which only affects the estimate.
+    private int _encodeSize = BufferPool.MIN_SIZE;
+
+    private int _smallEncodes = 0;
+
+    // Messages handed to the link to send, counted by the sending threads
+    private final AtomicLong _submitted = new AtomicLong();
+
+    // Messages transferred, counted on the event loop
+    private long _transferred = 0;
+
+    // The number of transfers the peer's last flow allows in all, which is
+    // its credit plus the transfers made before it
+    private volatile long _creditLimit = 0;
+
+    OutboundLinkImpl(SessionImpl ssn, String address)
     {
-        super(ssn, address, link);
+        super(ssn, address);
     }
 
     @Override
-    public void offerCredits(int credits) throws MessagingException, NetworkException
+    public void offerCredits(final int credits) throws MessagingException, NetworkException
     {
-        ((Sender) _link).offer(credits);
-        _ssn.getConnection().write();
+        _ssn.getConnection().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ((Sender) _link).offer(credits);
+                _ssn.getConnection().write();
+            }
+        });
     }
 
     @Override
     void init() throws NetworkException
     {
-        _link.open();
-        _ssn.getConnection().write();
+        _ssn.getConnection().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                _link.open();
+                _ssn.getConnection().write();
+            }
+        });
+    }
+
+    @Override
+    public int getCredit()
+    {
+        return (int) Math.max(_creditLimit - _submitted.get(), 0);
+    }
+
+    // Called on the event loop with the link's credit when the peer grants
+    // more
+    void flow(int credit)
+    {
+        _creditLimit = _transferred + credit;
     }
 
     @Override
     public int getUnsettled() throws MessagingException
     {
         checkClosed();
-        return _link.getUnsettled();
+        Link link = _link;
+        return link == null ? 0 : link.getUnsettled();
     }
 
     @Override
@@ -70,28 +124,52 @@ class OutboundLinkImpl extends BaseLink implements Action, OutboundLink
         checkClosed();
         if (msg instanceof MessageImpl)
         {
-            Sender sender = (Sender) _link;
-            byte[] tag = longToBytes(_ssn.getNextDeliveryTag());
-            Delivery delivery = sender.delivery(tag);
-            TrackerImpl tracker = new TrackerImpl(_ssn);
-            delivery.setContext(tracker);
-            if (sender.getSenderSettleMode() == SenderSettleMode.SETTLED)
+            MessageImpl m = (MessageImpl) msg;
+            if (m.getAddress() == null)
             {
-                delivery.settle();
-                tracker.markSettled();
+                m.setAddress(_address);
             }
+            return encodeAndSend(m);
+        }
+        else
+        {
+            throw new MessageFormatException("Unsupported message implementation");
+        }
+    }
 
-            org.apache.qpid.proton.message.Message m = ((MessageImpl) msg).getProtocolMessage();
-            if (m.getAddress() == null)
+    @Override
+    public Tracker relay(Message msg) throws MessageFormatException, MessagingException, NetworkException
+    {
+        checkClosed();
+        if (msg instanceof InboundMessage)
+        {
+            InboundMessage m = (InboundMessage) msg;
+            final byte[] received = m.getReceived();
+            if (received != null)
             {
-                m.setAddress(_address);
+                final TrackerImpl tracker = new TrackerImpl(_ssn);
+                final int length = m.getReceivedLength();
+                _submitted.incrementAndGet();
+                _ssn.getConnection().execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Sender sender = (Sender) _link;
+                        deliver(sender, tracker);
+                        // The bytes are copied into the delivery
+                        sender.send(received, 0, length);
+                        sender.advance();
+                        _transferred++;
+                        _ssn.getConnection().write();
+                    }
+                });
+                return tracker;
             }
-            byte[] buffer = new byte[1024];
-            int encoded = m.encode(buffer, 0, buffer.length);
-            sender.send(buffer, 0, encoded);
-            sender.advance();
-            _ssn.getConnection().write();
-            return tracker;
+        }
+        if (msg instanceof MessageImpl)
+        {
+            return encodeAndSend((MessageImpl) msg);
         }
         else
         {
@@ -99,6 +177,181 @@ class OutboundLinkImpl extends BaseLink implements Action, OutboundLink
         }
     }
 
+    private Tracker encodeAndSend(MessageImpl m)
+    {
+        final TrackerImpl tracker = new TrackerImpl(_ssn);
+        // Encoded on the calling thread, leaving only the transfer to the
+        // event loop.
+        PooledBuffer encodeBuffer = BufferPool.get().acquire(_encodeSize);
+        int length;
+        while (true)
+        {
+            try
+            {
+                length = m.encode(encodeBuffer.array(), 0, encodeBuffer.capacity());
+                break;
+            }
+            catch (BufferOverflowException e)
+            {
+                int capacity = encodeBuffer.capacity();
+                encodeBuffer.release();
+                encodeBuffer = BufferPool.get().acquire(capacity * 2);
+            }
+        }
+        encoded(encodeBuffer.capacity(), length);
+        final PooledBuffer buffer = encodeBuffer;
+        final int encoded = length;
+        _submitted.incrementAndGet();
+        _ssn.getConnection().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Sender sender = (Sender) _link;
+                    deliver(sender, tracker);
+                    // The bytes are copied into the delivery
+                    sender.send(buffer.array(), 0, encoded);
+                    sender.advance();
+                    _transferred++;
+                    _ssn.getConnection().write();
+                }
+                finally
+                {
+                    buffer.release();
+                }
+            }
+        });
+        return tracker;
+    }
+
+    @Override
+    public List<Tracker> send(Message msg, List<String> addresses) throws MessageFormatException,
+            MessagingException, NetworkException
+    {
+        checkClosed();
+        if (!(msg instanceof MessageImpl))
+        {
+            throw new MessageFormatException("Unsupported message implementation");
+        }
+
+        MessageImpl m = (MessageImpl) msg;
+        final int count = addresses.size();
+        final List<Tracker> trackers = new ArrayList<Tracker>(count);
+        for (int i = 0; i < count; i++)
+        {
+            trackers.add(new TrackerImpl(_ssn));
+        }
+        if (count == 0)
+        {
+            return trackers;
+        }
+
+        // The sections either side of the properties are encoded once, and
+        // followed by the properties for each address.
+        final int[] offsets = new int[count + 2];
+        PooledBuffer encodeBuffer = BufferPool.get().acquire(_encodeSize);
+        while (true)
+        {
+            try
+            {
+                encode(m, addresses, encodeBuffer.array(), encodeBuffer.capacity(), offsets);
+                break;
+            }
+            catch (BufferOverflowException e)
+            {
+                int capacity = encodeBuffer.capacity();
+                encodeBuffer.release();
+                encodeBuffer = BufferPool.get().acquire(capacity * 2);
+            }
+        }
+        encoded(encodeBuffer.capacity(), offsets[count + 1]);
+        final PooledBuffer buffer = encodeBuffer;
+        _submitted.addAndGet(count);
+        _ssn.getConnection().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // Proton does not grow a delivery's buffer to fit when it is
+                // sent in several parts, so each message is put together in a
+                // scratch buffer, which proton then copies.
+                int properties = 0;
+                for (int i = 0; i < count; i++)
+                {
+                    properties = Math.max(properties, offsets[i + 2] - offsets[i + 1]);
+                }
+                PooledBuffer scratch = BufferPool.get().acquire(offsets[1] + properties);
+                try
+                {
+                    Sender sender = (Sender) _link;
+                    byte[] bytes = buffer.array();
+                    byte[] message = scratch.array();
+                    int sections = offsets[1] - offsets[0];
+                    System.arraycopy(bytes, 0, message, 0, offsets[0]);
+                    for (int i = 0; i < count; i++)
+                    {
+                        int length = offsets[i + 2] - offsets[i + 1];
+                        System.arraycopy(bytes, offsets[i + 1], message, offsets[0], length);
+                        System.arraycopy(bytes, offsets[0], message, offsets[0] + length, sections);
+                        deliver(sender, (TrackerImpl) trackers.get(i));
+                        sender.send(message, 0, offsets[0] + length + sections);
+                        sender.advance();
+                        _transferred++;
+                    }
+                    _ssn.getConnection().write();
+                }
+                finally
+                {
+                    scratch.release();
+                    buffer.release();
+                }
+            }
+        });
+        return trackers;
+    }
+
+    // Lays out the sections before the properties, then the ones after them,
+    // then the properties for each address, recording where each ends. The
+    // message is left with the address it had.
+    private static void encode(MessageImpl m, List<String> addresses, byte[] buffer, int length, int[] offsets)
+    {
+        int position = m.encode(MessageSections.HEADER, MessageSections.PROPERTIES, buffer, 0, length);
+        offsets[0] = position;
+        position += m.encode(MessageSections.APPLICATION_PROPERTIES, MessageSections.COUNT, buffer, position, length
+                - position);
+        offsets[1] = position;
+        String address = m.getAddress();
+        try
+        {
+            for (int i = 0; i < addresses.size(); i++)
+            {
+                m.setAddress(addresses.get(i));
+                position += m.encode(MessageSections.PROPERTIES, MessageSections.APPLICATION_PROPERTIES, buffer,
+                        position, length - position);
+                offsets[i + 2] = position;
+            }
+        }
+        finally
+        {
+            m.setAddress(address);
+        }
+    }
+
+    private Delivery deliver(Sender sender, TrackerImpl tracker)
+    {
+        byte[] tag = longToBytes(_ssn.getNextDeliveryTag());
+        Delivery delivery = sender.delivery(tag);
+        delivery.setContext(tracker);
+        if (sender.getSenderSettleMode() == SenderSettleMode.SETTLED)
+        {
+            delivery.settle();
+            tracker.markSettled();
+        }
+        return delivery;
+    }
+
     @Override
     public void accept() throws NetworkException
     {
@@ -111,6 +364,27 @@ class OutboundLinkImpl extends BaseLink implements Action, OutboundLink
         // TODO Auto-generated method stub
     }
 
+    private void encoded(int capacity, int length)
+    {
+        if (capacity > _encodeSize)
+        {
+            _encodeSize = capacity;
+            _smallEncodes = 0;
+        }
+        else if (_encodeSize > BufferPool.MIN_SIZE && length <= _encodeSize / 2)
+        {
+            if (++_smallEncodes >= SHRINK_AFTER)
+            {
+                _encodeSize = _encodeSize / 2;
+                _smallEncodes = 0;
+            }
+        }
+        else
+        {
+            _smallEncodes = 0;
+        }
+    }
+
     private static byte[] longToBytes(final long value)
     {
         ByteBuffer buffer = ByteBuffer.allocate(8);
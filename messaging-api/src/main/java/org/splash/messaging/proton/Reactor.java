@@ -0,0 +1,200 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.proton;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.splash.logging.Logger;
+import org.splash.messaging.ConnectionSettings;
+import org.splash.threading.Threading;
+
+/**
+ * A fixed set of selector threads shared by all {@link ReactorNetworkConnection}s
+ * in the JVM. Each connection is pinned to one {@link IoLoop} for its lifetime,
+ * which performs all reads for that connection and writes its output once
+ * per iteration.
+ * 
+ * The number of threads is taken from the ConnectionSettings of the first
+ * connection that uses the reactor, see
+ * {@link ConnectionSettings#getReactorThreads()}.
+ */
+final class Reactor
+{
+    private static final Logger _logger = Logger.get(Reactor.class);
+
+    private static Reactor _instance;
+
+    private final IoLoop[] _loops;
+
+    private final AtomicInteger _next = new AtomicInteger(0);
+
+    private Reactor(int threads, int readBufferSize)
+    {
+        _loops = new IoLoop[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            _loops[i] = new IoLoop("splash-reactor-" + i, readBufferSize);
+        }
+    }
+
+    static synchronized Reactor get(ConnectionSettings settings)
+    {
+        if (_instance == null)
+        {
+            _instance = new Reactor(Math.max(1, settings.getReactorThreads()), settings.getReadBufferSize());
+        }
+        return _instance;
+    }
+
+    IoLoop nextLoop()
+    {
+        return _loops[Math.abs(_next.getAndIncrement() % _loops.length)];
+    }
+
+    static final class IoLoop implements Runnable
+    {
+        private final Selector _selector;
+
+        private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        // Shared by all connections on this loop. The ByteReceiver copies the
+        // data into the protocol engine before returning.
+        private final ByteBuffer _readBuffer;
+
+        private final Thread _thread;
+
+        // Connections with output queued during the current iteration
+        private final List<ReactorNetworkConnection> _dirty = new ArrayList<ReactorNetworkConnection>();
+
+        IoLoop(String name, int readBufferSize)
+        {
+            try
+            {
+                _selector = Selector.open();
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Error opening selector for reactor", e);
+            }
+            _readBuffer = ByteBuffer.allocate(readBufferSize);
+            try
+            {
+                _thread = Threading.getThreadFactory().createThread(this);
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException("Error creating reactor thread", e);
+            }
+            _thread.setName(name);
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+
+        void execute(Runnable task)
+        {
+            _tasks.add(task);
+            if (Thread.currentThread() != _thread)
+            {
+                _selector.wakeup();
+            }
+        }
+
+        Selector getSelector()
+        {
+            return _selector;
+        }
+
+        // Must be called from the reactor thread
+        void flushLater(ReactorNetworkConnection con)
+        {
+            _dirty.add(con);
+        }
+
+        boolean inLoop()
+        {
+            return Thread.currentThread() == _thread;
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    _selector.select();
+                    runTasks();
+                    Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ReactorNetworkConnection con = (ReactorNetworkConnection) key.attachment();
+                        con.ready(key, _readBuffer);
+                    }
+                    // Handlers run inline above may have queued work without
+                    // waking the selector, run it before blocking again.
+                    runTasks();
+                    flushDirty();
+                }
+                catch (Exception e)
+                {
+                    _logger.error(e, "Unexpected error in reactor thread %s", _thread.getName());
+                }
+            }
+        }
+
+        private void flushDirty()
+        {
+            for (int i = 0; i < _dirty.size(); i++)
+            {
+                _dirty.get(i).flushQueued();
+            }
+            _dirty.clear();
+        }
+
+        // Runs until the queue is empty, including tasks queued by the tasks
+        private void runTasks()
+        {
+            Runnable task;
+            while ((task = _tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (Exception e)
+                {
+                    _logger.error(e, "Error executing task in reactor thread %s", _thread.getName());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.proton;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.splash.logging.Logger;
+import org.splash.messaging.ConnectionSettings;
+
+/**
+ * A non blocking NetworkConnection driven by one of the {@link Reactor}
+ * threads. Reads are performed by the reactor thread, which hands the bytes to
+ * the ByteReceiver. Output is coalesced and written by the reactor thread,
+ * see {@link #write(ByteSource)}. Whatever the socket does not accept is left
+ * in the ByteSource and written once the channel becomes writable.
+ * 
+ * If {@link ConnectionSettings#isDirectInputEnabled()} is set and the receiver
+ * is a {@link DirectByteReceiver}, the reactor thread reads from the channel
+ * straight into the receiver's input buffer.
+ */
+class ReactorNetworkConnection extends NetworkConnection
+{
+    private static final Logger _logger = Logger.get(ReactorNetworkConnection.class);
+
+    private final SocketChannel _channel;
+
+    private final ByteReceiver _receiver;
+
+    // Set if the receiver's input buffer should be filled directly
+    private final DirectByteReceiver _directReceiver;
+
+    private final Reactor.IoLoop _loop;
+
+    private final AtomicBoolean _closed = new AtomicBoolean(false);
+
+    private final Object _writeLock = new Object();
+
+    private final Queue<ByteBuffer> _pendingWrites = new LinkedList<ByteBuffer>();
+
+    private SelectionKey _key;
+
+    // OP_READ until the receiver stops taking input, which it does once its
+    // transport has closed for input
+    private volatile int _readOps = SelectionKey.OP_READ;
+
+    private boolean _closeAfterFlush = false;
+
+    private volatile ByteSource _source;
+
+    private ByteBuffer[] _gather = new ByteBuffer[2];
+
+    // Only accessed by the reactor thread
+    private boolean _flushQueued = false;
+
+    private final ConnectionSettings _settings;
+
+    ReactorNetworkConnection(ConnectionSettings settings, ByteReceiver receiver)
+    {
+        this(settings, openChannel(settings), receiver);
+    }
+
+    ReactorNetworkConnection(ConnectionSettings settings, SocketChannel channel, ByteReceiver receiver)
+    {
+        _settings = settings;
+        _channel = channel;
+        _receiver = receiver;
+        if (settings.isDirectInputEnabled() && receiver instanceof DirectByteReceiver)
+        {
+            _directReceiver = (DirectByteReceiver) receiver;
+        }
+        else
+        {
+            _directReceiver = null;
+        }
+        try
+        {
+            _channel.socket().setReuseAddress(true);
+            _channel.socket().setTcpNoDelay(true);
+            _channel.socket().setSendBufferSize(_settings.getWriteBufferSize());
+            _channel.socket().setReceiveBufferSize(_settings.getReadBufferSize());
+            _channel.configureBlocking(false);
+        }
+        catch (SocketException e)
+        {
+            throw new RuntimeException("Error setting socket parameters", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("IO error when configuring channel", e);
+        }
+        _loop = Reactor.get(settings).nextLoop();
+    }
+
+    private static SocketChannel openChannel(ConnectionSettings settings)
+    {
+        try
+        {
+            InetAddress address = InetAddress.getByName(settings.getHost());
+            SocketChannel channel = SocketChannel.open();
+            channel.socket().connect(new InetSocketAddress(address, settings.getPort()),
+                    (int) settings.getConnectTimeout());
+            return channel;
+        }
+        catch (UnknownHostException e)
+        {
+            throw new RuntimeException("Error connecting to given host", e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("IO error when connecting to peer", e);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer buf) throws IOException
+    {
+        if (_closed.get())
+        {
+            throw new RuntimeException("Connection is closed");
+        }
+        synchronized (_writeLock)
+        {
+            flush();
+            if (_pendingWrites.isEmpty())
+            {
+                _channel.write(buf);
+            }
+            if (buf.hasRemaining())
+            {
+                // The caller reuses the buffer once we return, so keep a copy.
+                ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+                copy.put(buf);
+                copy.flip();
+                _pendingWrites.add(copy);
+                setWriteInterest(true);
+            }
+        }
+    }
+
+    /**
+     * Output produced on the reactor thread is written in a single gathering
+     * write at the end of the current iteration, together with any output
+     * produced in the meantime, unless at least
+     * {@link ConnectionSettings#getWriteBufferSize()} bytes are already
+     * pending. Other threads write straight away, as the source cannot be
+     * read once they return.
+     */
+    @Override
+    public void write(ByteSource source) throws IOException
+    {
+        if (_closed.get())
+        {
+            throw new RuntimeException("Connection is closed");
+        }
+        _source = source;
+        if (_loop.inLoop() && source.head().remaining() < _settings.getWriteBufferSize())
+        {
+            if (!_flushQueued)
+            {
+                _flushQueued = true;
+                _loop.flushLater(this);
+            }
+        }
+        else
+        {
+            flush();
+        }
+    }
+
+    @Override
+    public void start()
+    {
+        _loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                register();
+            }
+        });
+    }
+
+    @Override
+    public void close()
+    {
+        _closed.set(true);
+        _loop.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (_writeLock)
+                {
+                    _closeAfterFlush = true;
+                    flushSafely();
+                }
+            }
+        });
+    }
+
+    @Override
+    Reactor.IoLoop getIoLoop()
+    {
+        return _loop;
+    }
+
+    private void register()
+    {
+        synchronized (_writeLock)
+        {
+            try
+            {
+                int ops = hasPendingOutput() ? _readOps | SelectionKey.OP_WRITE : _readOps;
+                _key = _channel.register(_loop.getSelector(), ops, this);
+            }
+            catch (ClosedChannelException e)
+            {
+                failed(e);
+            }
+        }
+    }
+
+    // Invoked by the reactor thread when the channel is ready for I/O
+    void ready(SelectionKey key, ByteBuffer readBuffer)
+    {
+        try
+        {
+            if (key.isValid() && key.isWritable())
+            {
+                flush();
+            }
+            if (key.isValid() && key.isReadable())
+            {
+                int read;
+                if (_directReceiver != null)
+                {
+                    ByteBuffer input = _directReceiver.getInputBuffer();
+                    if (!input.hasRemaining())
+                    {
+                        // Reading into a full buffer returns 0 and leaves
+                        // the key readable, so stop selecting for reads
+                        // rather than spin.
+                        stopReading(key);
+                        return;
+                    }
+                    read = _channel.read(input);
+                    if (read > 0)
+                    {
+                        _directReceiver.processInput();
+                    }
+                }
+                else
+                {
+                    readBuffer.clear();
+                    read = _channel.read(readBuffer);
+                    if (read > 0)
+                    {
+                        readBuffer.flip();
+                        _receiver.received(readBuffer);
+                    }
+                }
+                if (read == -1)
+                {
+                    failed(new EOFException("Connection closed by peer"));
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            failed(e);
+        }
+    }
+
+    // Invoked by the reactor thread at the end of the iteration in which
+    // output was queued via flushLater
+    void flushQueued()
+    {
+        _flushQueued = false;
+        flushSafely();
+    }
+
+    private void flushSafely()
+    {
+        try
+        {
+            flush();
+        }
+        catch (Exception e)
+        {
+            failed(e);
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        synchronized (_writeLock)
+        {
+            ByteSource source = _source;
+            ByteBuffer head = source == null ? null : source.head();
+            int count = _pendingWrites.size();
+            if (head != null && head.hasRemaining())
+            {
+                count++;
+            }
+            if (count > 0)
+            {
+                if (_gather.length < count)
+                {
+                    _gather = new ByteBuffer[count];
+                }
+                int i = 0;
+                for (ByteBuffer buf : _pendingWrites)
+                {
+                    _gather[i++] = buf;
+                }
+                int start = 0;
+                if (head != null && head.hasRemaining())
+                {
+                    start = head.position();
+                    _gather[i++] = head;
+                }
+                _channel.write(_gather, 0, count);
+                Arrays.fill(_gather, 0, count, null);
+
+                while (!_pendingWrites.isEmpty() && !_pendingWrites.peek().hasRemaining())
+                {
+                    _pendingWrites.poll();
+                }
+                // Whatever was not written stays in the source until the
+                // channel becomes writable again.
+                if (head != null && head.position() > start)
+                {
+                    source.pop(head.position() - start);
+                }
+            }
+            boolean done = _pendingWrites.isEmpty() && (head == null || !head.hasRemaining());
+            setWriteInterest(!done);
+            if (done && _closeAfterFlush)
+            {
+                closeChannel();
+            }
+        }
+    }
+
+    private void stopReading(SelectionKey key)
+    {
+        synchronized (_writeLock)
+        {
+            _readOps = 0;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private boolean hasPendingOutput()
+    {
+        return !_pendingWrites.isEmpty() || (_source != null && _source.head().hasRemaining());
+    }
+
+    private void setWriteInterest(boolean write)
+    {
+        // Until the channel is registered, register() picks up the pending
+        // output.
+        if (_key != null && _key.isValid())
+        {
+            _key.interestOps(write ? _readOps | SelectionKey.OP_WRITE : _readOps);
+            if (write && !_loop.inLoop())
+            {
+                _loop.getSelector().wakeup();
+            }
+        }
+    }
+
+    private void failed(Exception e)
+    {
+        if (!_closed.get())
+        {
+            _closed.set(true);
+            _receiver.exception(e);
+        }
+        closeChannel();
+    }
+
+    private void closeChannel()
+    {
+        if (_key != null)
+        {
+            _key.cancel();
+        }
+        try
+        {
+            _channel.close();
+        }
+        catch (IOException e)
+        {
+            _logger.warn(e, "Error closing channel");
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.splash.logging.Logger;
@@ -35,7 +36,9 @@ public class ServerImpl implements Server, Runnable
         _handlers = handlers;
         try
         {
-            _serverSocket = new ServerSocket();
+            // Sockets accepted from a channel backed server socket can be
+            // handed over to the reactor.
+            _serverSocket = _settings.isReactorEnabled() ? ServerSocketChannel.open().socket() : new ServerSocket();
             _serverSocket.bind(new InetSocketAddress(_settings.getHost(), _settings.getPort()));
             _serverSocket.setReuseAddress(true);
         }
@@ -70,7 +73,7 @@ public class ServerImpl implements Server, Runnable
                     socket = _serverSocket.accept();
 
                     ConnectionImpl connection = new ConnectionImpl(_settings, _handlers);
-                    NetworkConnection network = new NetworkConnection(_settings, socket, connection);
+                    NetworkConnection network = NetworkConnection.create(_settings, socket, connection);
                     connection.bind(network);
                     for (EventHandler handler : _handlers)
                     {
@@ -81,14 +81,32 @@ class SessionImpl extends ContextAwareImpl implements org.splash.messaging.Sessi
 
     private final String _id;
 
-    SessionImpl(BaseConnection conn, Session ssn)
+    SessionImpl(BaseConnection conn)
     {
         _id = UUID.randomUUID().toString();
         _conn = conn;
+    }
+
+    // Invoked on the event loop
+    void bind(Session ssn)
+    {
         _ssn = ssn;
     }
 
     void init() throws NetworkException
+    {
+        _conn.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                open();
+            }
+        });
+    }
+
+    // Invoked on the event loop
+    void open()
     {
         _ssn.open();
         _conn.write();
@@ -107,118 +125,165 @@ class SessionImpl extends ContextAwareImpl implements org.splash.messaging.Sessi
     }
 
     @Override
-    public OutboundLink createOutboundLink(String address, OutboundLinkMode mode) throws NetworkException,
-            MessagingException
+    public OutboundLink createOutboundLink(final String address, final OutboundLinkMode mode)
+            throws NetworkException, MessagingException
     {
         checkClosed();
-        Sender sender;
-        Source source = new Source();
-        Target target = new Target();
-        if (address == null || address.isEmpty() || address.equals("#"))
+        final boolean dynamic = address == null || address.isEmpty() || address.equals("#");
+        final OutboundLinkImpl outLink = new OutboundLinkImpl(this, address);
+        outLink.setDynamicAddress(dynamic);
+        _conn.execute(new Runnable()
         {
-            String temp = UUID.randomUUID().toString();
-            sender = _ssn.sender(temp);
-            target.setDynamic(true);
-        }
-        else
-        {
-            sender = _ssn.sender(address);
-            target.setAddress(address);
-        }
-        sender.setTarget(target);
-        sender.setSource(source);
-        sender.setSenderSettleMode(mode == OutboundLinkMode.AT_MOST_ONCE ? SenderSettleMode.SETTLED
-                : SenderSettleMode.UNSETTLED);
-        sender.open();
-
-        OutboundLinkImpl outLink = new OutboundLinkImpl(this, address, sender);
-        outLink.setDynamicAddress(target.getDynamic());
-        _links.put(sender, outLink);
-        sender.setContext(outLink);
-        _conn.write();
+            @Override
+            public void run()
+            {
+                Sender sender;
+                Source source = new Source();
+                Target target = new Target();
+                if (dynamic)
+                {
+                    String temp = UUID.randomUUID().toString();
+                    sender = _ssn.sender(temp);
+                    target.setDynamic(true);
+                }
+                else
+                {
+                    sender = _ssn.sender(address);
+                    target.setAddress(address);
+                }
+                sender.setTarget(target);
+                sender.setSource(source);
+                sender.setSenderSettleMode(mode == OutboundLinkMode.AT_MOST_ONCE ? SenderSettleMode.SETTLED
+                        : SenderSettleMode.UNSETTLED);
+                sender.open();
+
+                outLink.bind(sender);
+                _links.put(sender, outLink);
+                sender.setContext(outLink);
+                _conn.write();
+            }
+        });
         return outLink;
     }
 
     @Override
-    public InboundLink createInboundLink(String address, InboundLinkMode mode, CreditMode creditMode)
+    public InboundLink createInboundLink(final String address, final InboundLinkMode mode, CreditMode creditMode)
             throws NetworkException, MessagingException
     {
-        Receiver receiver;
-        Source source = new Source();
-        Target target = new Target();
-        if (address == null || address.isEmpty() || address.equals("#"))
+        final boolean dynamic = address == null || address.isEmpty() || address.equals("#");
+        final InboundLinkImpl inLink = new InboundLinkImpl(this, address, creditMode);
+        inLink.setDynamicAddress(dynamic);
+        _conn.execute(new Runnable()
         {
-            String temp = UUID.randomUUID().toString();
-            receiver = _ssn.receiver(temp);
-            source.setDynamic(true);
-        }
-        else
-        {
-            receiver = _ssn.receiver(address);
-            source.setAddress(address);
-        }
-        receiver.setSource(source);
-        receiver.setTarget(target);
-        switch (mode)
-        {
-        case AT_MOST_ONCE:
-            receiver.setReceiverSettleMode(ReceiverSettleMode.FIRST);
-            receiver.setSenderSettleMode(SenderSettleMode.SETTLED);
-            break;
-        case AT_LEAST_ONCE:
-            receiver.setReceiverSettleMode(ReceiverSettleMode.FIRST);
-            receiver.setSenderSettleMode(SenderSettleMode.UNSETTLED);
-            break;
-        case EXACTLY_ONCE:
-            receiver.setReceiverSettleMode(ReceiverSettleMode.SECOND);
-            receiver.setSenderSettleMode(SenderSettleMode.UNSETTLED);
-            break;
-        }
-        receiver.open();
+            @Override
+            public void run()
+            {
+                Receiver receiver;
+                Source source = new Source();
+                Target target = new Target();
+                if (dynamic)
+                {
+                    String temp = UUID.randomUUID().toString();
+                    receiver = _ssn.receiver(temp);
+                    source.setDynamic(true);
+                }
+                else
+                {
+                    receiver = _ssn.receiver(address);
+                    source.setAddress(address);
+                }
+                receiver.setSource(source);
+                receiver.setTarget(target);
+                switch (mode)
+                {
+                case AT_MOST_ONCE:
+                    receiver.setReceiverSettleMode(ReceiverSettleMode.FIRST);
+                    receiver.setSenderSettleMode(SenderSettleMode.SETTLED);
+                    break;
+                case AT_LEAST_ONCE:
+                    receiver.setReceiverSettleMode(ReceiverSettleMode.FIRST);
+                    receiver.setSenderSettleMode(SenderSettleMode.UNSETTLED);
+                    break;
+                case EXACTLY_ONCE:
+                    receiver.setReceiverSettleMode(ReceiverSettleMode.SECOND);
+                    receiver.setSenderSettleMode(SenderSettleMode.UNSETTLED);
+                    break;
+                }
+                receiver.open();
 
-        InboundLinkImpl inLink = new InboundLinkImpl(this, address, receiver, creditMode);
-        inLink.setDynamicAddress(source.getDynamic());
-        _links.put(receiver, inLink);
-        receiver.setContext(inLink);
-        _conn.write();
+                inLink.bind(receiver);
+                _links.put(receiver, inLink);
+                receiver.setContext(inLink);
+                _conn.write();
+            }
+        });
         return inLink;
     }
 
     @Override
-    public void disposition(Message msg, MessageDisposition disposition, int... flags) throws MessageFormatException,
-            MessagingException, NetworkException
+    public void disposition(Message msg, MessageDisposition disposition, final int... flags)
+            throws MessageFormatException, MessagingException, NetworkException
     {
+        final InboundMessage m = convertMessage(msg);
+        final DeliveryState state;
         switch (disposition)
         {
         case ACCEPTED:
-            disposition(convertMessage(msg), ACCEPTED, flags);
+            state = ACCEPTED;
             break;
         case REJECTED:
-            disposition(convertMessage(msg), REJECTED, flags);
+            state = REJECTED;
             break;
         case RELEASED:
-            disposition(convertMessage(msg), RELEASED, flags);
+            state = RELEASED;
             break;
+        default:
+            return;
         }
+        _conn.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                disposition(m, state, flags);
+            }
+        });
     }
 
     @Override
     public void settle(Message msg, int... flags) throws MessageFormatException, MessagingException, NetworkException
     {
-        settle(convertMessage(msg), flags.length == 0 ? false : (flags[0] & CUMULATIVE) != 0, true);
+        final InboundMessage m = convertMessage(msg);
+        final boolean cumilative = flags.length == 0 ? false : (flags[0] & CUMULATIVE) != 0;
+        _conn.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                settle(m, cumilative, true);
+            }
+        });
     }
 
     @Override
     public void close() throws NetworkException
     {
-        if (!_closed.get())
+        if (_closed.compareAndSet(false, true))
         {
-            closeImpl();
-            _conn.removeSession(_ssn);
-            _conn.write();
+            _conn.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    closeImpl();
+                    _conn.removeSession(_ssn);
+                    _conn.write();
+                }
+            });
         }
     }
 
+    // Invoked on the event loop
     void closeImpl()
     {
         _closed.set(true);
@@ -250,6 +315,12 @@ class SessionImpl extends ContextAwareImpl implements org.splash.messaging.Sessi
         return _incommingSequence.incrementAndGet();
     }
 
+    // Invoked on the event loop, for deliveries the peer has not settled
+    void addUnsettled(long sequence, Delivery d)
+    {
+        _unsettled.put(sequence, d);
+    }
+
     String getID()
     {
         return _id;
@@ -263,7 +334,8 @@ class SessionImpl extends ContextAwareImpl implements org.splash.messaging.Sessi
         }
     }
 
-    void disposition(InboundMessage msg, DeliveryState state, int... flags) throws NetworkException
+    // Invoked on the event loop
+    void disposition(InboundMessage msg, DeliveryState state, int... flags)
     {
         int flag = flags.length == 1 ? flags[0] : 0;
         boolean cumilative = (flag & CUMULATIVE) != 0;
@@ -281,7 +353,12 @@ class SessionImpl extends ContextAwareImpl implements org.splash.messaging.Sessi
             }
             count++;
         }
-        _lastDispositionMark.set(end);
+        // Only cumulative dispositions move the mark, so that one for a single
+        // message does not hide the earlier ones from the next cumulative one
+        if (cumilative)
+        {
+            _lastDispositionMark.set(end);
+        }
         if (settle)
         {
             settle(msg, cumilative, false);
@@ -289,7 +366,8 @@ class SessionImpl extends ContextAwareImpl implements org.splash.messaging.Sessi
         _conn.write();
     }
 
-    void settle(InboundMessage msg, boolean cumilative, boolean write) throws NetworkException
+    // Invoked on the event loop
+    void settle(InboundMessage msg, boolean cumilative, boolean write)
     {
         long count = cumilative ? _lastSettled.get() : msg.getSequence();
         long end = msg.getSequence();
@@ -308,7 +386,10 @@ class SessionImpl extends ContextAwareImpl implements org.splash.messaging.Sessi
             }
             count++;
         }
-        _lastSettled.set(end);
+        if (cumilative)
+        {
+            _lastSettled.set(end);
+        }
         _conn.write();
     }
 
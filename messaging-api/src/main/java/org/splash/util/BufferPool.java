@@ -0,0 +1,282 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of heap buffers shared across connections. Buffers are grouped into
+ * power of two size classes between {@link #MIN_SIZE} and {@link #MAX_SIZE}.
+ * Requests larger than {@link #MAX_SIZE} are served with unpooled buffers.
+ * 
+ * The total number of bytes kept in the pool is bounded by the
+ * <i>"splash.buffer_pool.max_bytes"</i> system property (defaults to 16MB).
+ * Buffers released while the pool is full are left to the garbage collector
+ * and counted as dropped.
+ * 
+ * @see PooledBuffer
+ */
+public final class BufferPool
+{
+    public static final int MIN_SIZE = 512;
+
+    public static final int MAX_SIZE = 128 * 1024;
+
+    private static final BufferPool _instance = new BufferPool(Long.getLong("splash.buffer_pool.max_bytes",
+            16 * 1024 * 1024));
+
+    private final SizeClass[] _classes;
+
+    private final long _maxBytes;
+
+    private final AtomicLong _pooledBytes = new AtomicLong(0);
+
+    private final AtomicInteger _pooledBuffers = new AtomicInteger(0);
+
+    private final AtomicInteger _inUse = new AtomicInteger(0);
+
+    private final AtomicLong _hits = new AtomicLong(0);
+
+    private final AtomicLong _misses = new AtomicLong(0);
+
+    private final AtomicLong _dropped = new AtomicLong(0);
+
+    BufferPool(long maxBytes)
+    {
+        _maxBytes = maxBytes;
+        int count = 0;
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1)
+        {
+            count++;
+        }
+        _classes = new SizeClass[count];
+        for (int i = 0; i < count; i++)
+        {
+            _classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    public static BufferPool get()
+    {
+        return _instance;
+    }
+
+    /**
+     * Returns a buffer with a capacity of at least the given size and a
+     * reference count of one.
+     */
+    public PooledBuffer acquire(int size)
+    {
+        int index = sizeClass(size);
+        PooledBuffer buffer;
+        if (index < 0)
+        {
+            _misses.incrementAndGet();
+            buffer = new PooledBuffer(this, new byte[size], -1);
+        }
+        else
+        {
+            buffer = _classes[index]._free.poll();
+            if (buffer == null)
+            {
+                _misses.incrementAndGet();
+                buffer = new PooledBuffer(this, new byte[_classes[index]._size], index);
+            }
+            else
+            {
+                _hits.incrementAndGet();
+                _pooledBuffers.decrementAndGet();
+                _pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+        _inUse.incrementAndGet();
+        buffer.acquired();
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer)
+    {
+        _inUse.decrementAndGet();
+        if (buffer.sizeClass() < 0)
+        {
+            return;
+        }
+        if (_pooledBytes.addAndGet(buffer.capacity()) > _maxBytes)
+        {
+            _pooledBytes.addAndGet(-buffer.capacity());
+            _dropped.incrementAndGet();
+            return;
+        }
+        _pooledBuffers.incrementAndGet();
+        _classes[buffer.sizeClass()]._free.add(buffer);
+    }
+
+    /**
+     * Creates an estimator that adapts the buffer size requested for each
+     * read to the sizes of the previous reads, up to the given limit.
+     */
+    public SizeEstimator newSizeEstimator(int maxSize)
+    {
+        return new SizeEstimator(Math.max(0, sizeClass(Math.min(maxSize, MAX_SIZE))));
+    }
+
+    static int sizeClass(int size)
+    {
+        if (size > MAX_SIZE)
+        {
+            return -1;
+        }
+        int index = 0;
+        while ((MIN_SIZE << index) < size)
+        {
+            index++;
+        }
+        return index;
+    }
+
+    // ----------- Counters ---------------
+    /**
+     * Number of acquisitions served from the pool.
+     */
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    /**
+     * Number of acquisitions that required a new buffer to be allocated.
+     */
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * Number of released buffers discarded because the pool was full.
+     */
+    public long getDropped()
+    {
+        return _dropped.get();
+    }
+
+    /**
+     * Number of buffers currently available in the pool.
+     */
+    public int getPooledBuffers()
+    {
+        return _pooledBuffers.get();
+    }
+
+    /**
+     * Number of bytes currently held by the pool.
+     */
+    public long getPooledBytes()
+    {
+        return _pooledBytes.get();
+    }
+
+    /**
+     * Number of buffers that have been acquired but not yet released.
+     */
+    public int getInUse()
+    {
+        return _inUse.get();
+    }
+
+    public long getMaxBytes()
+    {
+        return _maxBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[pooled-buffers=%s, pooled-bytes=%s, in-use=%s, hits=%s, misses=%s, dropped=%s]",
+                getPooledBuffers(), getPooledBytes(), getInUse(), getHits(), getMisses(), getDropped());
+    }
+
+    static final class SizeClass
+    {
+        final int _size;
+
+        final Queue<PooledBuffer> _free = new ConcurrentLinkedQueue<PooledBuffer>();
+
+        SizeClass(int size)
+        {
+            _size = size;
+        }
+    }
+
+    /**
+     * Tracks the sizes of the reads on a single connection. A read that fills
+     * the buffer moves the estimate up a size class, while two consecutive
+     * reads that would have fit in the next smaller class move it down. Idle
+     * connections therefore settle on small buffers, and busy connections on
+     * large ones. Not thread safe.
+     */
+    public static final class SizeEstimator
+    {
+        private final int _maxIndex;
+
+        private int _index;
+
+        private boolean _shrink = false;
+
+        SizeEstimator(int maxIndex)
+        {
+            _maxIndex = maxIndex;
+            _index = maxIndex;
+        }
+
+        public int next()
+        {
+            return MIN_SIZE << _index;
+        }
+
+        public void record(int read)
+        {
+            if (read >= next())
+            {
+                _index = Math.min(_index + 1, _maxIndex);
+                _shrink = false;
+            }
+            else if (_index > 0 && read <= (MIN_SIZE << (_index - 1)))
+            {
+                if (_shrink)
+                {
+                    _index--;
+                    _shrink = false;
+                }
+                else
+                {
+                    _shrink = true;
+                }
+            }
+            else
+            {
+                _shrink = false;
+            }
+        }
+    }
+}
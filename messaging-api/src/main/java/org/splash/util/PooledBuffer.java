@@ -0,0 +1,103 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer obtained from a {@link BufferPool}. The buffer is
+ * handed out with a reference count of one. Anyone holding on to the buffer
+ * beyond the scope it was given in must {@link #retain()} it, and every
+ * reference must be matched by a {@link #release()}. The buffer is returned to
+ * the pool when the count drops to zero and must not be used afterwards.
+ */
+public final class PooledBuffer
+{
+    private final BufferPool _pool;
+
+    private final byte[] _array;
+
+    private final int _sizeClass;
+
+    private final AtomicInteger _refCount = new AtomicInteger(0);
+
+    PooledBuffer(BufferPool pool, byte[] array, int sizeClass)
+    {
+        _pool = pool;
+        _array = array;
+        _sizeClass = sizeClass;
+    }
+
+    public byte[] array()
+    {
+        return _array;
+    }
+
+    public int capacity()
+    {
+        return _array.length;
+    }
+
+    public ByteBuffer wrap(int offset, int length)
+    {
+        return ByteBuffer.wrap(_array, offset, length);
+    }
+
+    public PooledBuffer retain()
+    {
+        while (true)
+        {
+            int count = _refCount.get();
+            if (count <= 0)
+            {
+                throw new IllegalStateException("Buffer has already been released");
+            }
+            if (_refCount.compareAndSet(count, count + 1))
+            {
+                return this;
+            }
+        }
+    }
+
+    public void release()
+    {
+        int count = _refCount.decrementAndGet();
+        if (count == 0)
+        {
+            _pool.recycle(this);
+        }
+        else if (count < 0)
+        {
+            throw new IllegalStateException("Buffer has already been released");
+        }
+    }
+
+    void acquired()
+    {
+        _refCount.set(1);
+    }
+
+    int sizeClass()
+    {
+        return _sizeClass;
+    }
+}
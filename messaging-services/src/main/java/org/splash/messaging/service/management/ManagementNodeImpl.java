@@ -259,7 +259,18 @@ public class ManagementNodeImpl extends AbstractManagementEventHandler implement
 
                 if (_lifeCycleHandler != null)
                 {
-                    _lifeCycleHandler.entityCreated(entity);
+                    try
+                    {
+                        _lifeCycleHandler.entityCreated(entity);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Not left registered when it could not be set up
+                        _byId.remove(entity.getID());
+                        _byName.remove(entity.getName());
+                        removeEntityFromTypeRegistry(entity.getClass(), entity);
+                        throw e;
+                    }
                 }
                 Message msg = _msgFactory.response(req, ResponseCode.OK, entity.read());
                 send(msg);
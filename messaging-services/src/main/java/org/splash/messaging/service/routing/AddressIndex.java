@@ -0,0 +1,237 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the router for the address of a message. Routers bound to an
+ * address exactly are looked up in a hash map first. Failing that, the
+ * router bound to the longest prefix of the address is, so that a router
+ * bound to the prefix orders/ receives the messages for orders/eu/123.
+ *
+ * The prefixes are held in a radix tree, where each edge is labelled with
+ * the run of characters that the prefixes below it share, so a lookup
+ * compares each character of the address at most once. The tree is
+ * immutable and rebuilt whenever the prefixes change, which is seldom, so
+ * lookups do not lock.
+ */
+class AddressIndex
+{
+    private final Map<String, Router> _exact = new ConcurrentHashMap<String, Router>();
+
+    // Guarded by the index's lock
+    private final Map<String, Router> _prefixes = new TreeMap<String, Router>();
+
+    private volatile Node _root = null;
+
+    Router get(String address)
+    {
+        if (address == null)
+        {
+            return null;
+        }
+        Router router = _exact.get(address);
+        if (router != null)
+        {
+            return router;
+        }
+        Node node = _root;
+        int position = 0;
+        while (node != null)
+        {
+            if (!address.regionMatches(position, node._label, 0, node._label.length()))
+            {
+                break;
+            }
+            position += node._label.length();
+            if (node._router != null)
+            {
+                router = node._router;
+            }
+            if (position == address.length())
+            {
+                break;
+            }
+            node = node.child(address.charAt(position));
+        }
+        return router;
+    }
+
+    synchronized void put(String address, boolean prefix, Router router)
+    {
+        if (prefix)
+        {
+            _prefixes.put(address, router);
+            _root = build();
+        }
+        else
+        {
+            _exact.put(address, router);
+        }
+    }
+
+    synchronized void remove(String address, Router router)
+    {
+        if (_exact.get(address) == router)
+        {
+            _exact.remove(address);
+        }
+        else if (_prefixes.get(address) == router)
+        {
+            _prefixes.remove(address);
+            _root = build();
+        }
+    }
+
+    private Node build()
+    {
+        if (_prefixes.isEmpty())
+        {
+            return null;
+        }
+        Builder root = new Builder("");
+        for (Map.Entry<String, Router> entry : _prefixes.entrySet())
+        {
+            root.insert(entry.getKey(), 0, entry.getValue());
+        }
+        return root.freeze();
+    }
+
+    static final class Node
+    {
+        final String _label;
+
+        final Router _router;
+
+        // The first character of the label of each child, in order
+        final char[] _firsts;
+
+        final Node[] _children;
+
+        Node(String label, Router router, char[] firsts, Node[] children)
+        {
+            _label = label;
+            _router = router;
+            _firsts = firsts;
+            _children = children;
+        }
+
+        Node child(char c)
+        {
+            int low = 0;
+            int high = _firsts.length - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                if (_firsts[mid] < c)
+                {
+                    low = mid + 1;
+                }
+                else if (_firsts[mid] > c)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return _children[mid];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A node of the tree while it is built, splitting labels as prefixes
+     * that diverge part of the way along them are inserted.
+     */
+    private static final class Builder
+    {
+        String _label;
+
+        Router _router;
+
+        // Kept in order of the first character of their labels
+        List<Builder> _children = new ArrayList<Builder>(2);
+
+        Builder(String label)
+        {
+            _label = label;
+        }
+
+        // The label of this node has already been matched up to position
+        void insert(String prefix, int position, Router router)
+        {
+            if (position == prefix.length())
+            {
+                _router = router;
+                return;
+            }
+            char first = prefix.charAt(position);
+            int index = 0;
+            while (index < _children.size() && _children.get(index)._label.charAt(0) < first)
+            {
+                index++;
+            }
+            if (index == _children.size() || _children.get(index)._label.charAt(0) != first)
+            {
+                Builder leaf = new Builder(prefix.substring(position));
+                leaf._router = router;
+                _children.add(index, leaf);
+                return;
+            }
+
+            Builder child = _children.get(index);
+            int common = 1;
+            while (common < child._label.length() && position + common < prefix.length()
+                    && child._label.charAt(common) == prefix.charAt(position + common))
+            {
+                common++;
+            }
+            if (common < child._label.length())
+            {
+                // Splits the child where the prefix diverges from its label
+                Builder split = new Builder(child._label.substring(0, common));
+                child._label = child._label.substring(common);
+                split._children.add(child);
+                _children.set(index, split);
+                child = split;
+            }
+            child.insert(prefix, position + common, router);
+        }
+
+        Node freeze()
+        {
+            char[] firsts = new char[_children.size()];
+            Node[] children = new Node[_children.size()];
+            for (int i = 0; i < children.length; i++)
+            {
+                children[i] = _children.get(i).freeze();
+                firsts[i] = children[i]._label.charAt(0);
+            }
+            return new Node(_label, _router, firsts, children);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.Map;
+
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+import org.splash.messaging.service.management.ManagementAttribute;
+
+/**
+ * Places a destination on the hash ring of a {@link ConsistentHashRouter}.
+ * The weight scales the number of virtual nodes, and so the share of the
+ * keys, the destination is given.
+ */
+@ManageableEntityType("org.splash.ConsistentHashRoute")
+public class ConsistentHashRoute extends Route
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new ConsistentHashRoute(id, name, args);
+        }
+    }
+
+    static final String WEIGHT = "weight";
+
+    @ManagementAttribute("weight")
+    protected int _weight = 1;
+
+    public ConsistentHashRoute(String id, String name, Map<String, Object> args) throws IllegalArgumentException
+    {
+        super(id, name, args);
+        if (args.containsKey(WEIGHT))
+        {
+            setWeight(args.get(WEIGHT));
+        }
+    }
+
+    int getWeight()
+    {
+        return _weight;
+    }
+
+    private void setWeight(Object weight)
+    {
+        int value = Integer.parseInt(String.valueOf(weight));
+        if (value < 1)
+        {
+            throw new IllegalArgumentException("weight should be at least 1");
+        }
+        _args.put(WEIGHT, weight);
+        _weight = value;
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        if (attributes.containsKey(WEIGHT))
+        {
+            setWeight(attributes.get(WEIGHT));
+        }
+        // The ring is rebuilt for a new weight as well as a new destination
+        super.update(attributes);
+        return _args;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[weight=%s, destination=%s]", _weight, _dest);
+    }
+}
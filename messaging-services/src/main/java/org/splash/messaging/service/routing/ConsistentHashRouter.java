@@ -0,0 +1,279 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.splash.messaging.Message;
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+import org.splash.messaging.service.management.ManagementAttribute;
+
+/**
+ * Partitions messages between destinations by a key, so that the messages
+ * with the same key go to the same destination. The key is the subject, the
+ * group id or an application property of the message.
+ *
+ * Each destination, see {@link ConsistentHashRoute}, is placed on a ring of
+ * hashes at a number of points, its virtual nodes, and a message goes to the
+ * destination at the first point at or after the hash of its key. Adding or
+ * removing one of N destinations thus only moves about 1/N of the keys. The
+ * ring is held as a sorted array of hashes, with the destination of each
+ * point, that is replaced whenever the routes change, so a key is looked up
+ * with a binary search and without allocating.
+ */
+@ManageableEntityType("org.splash.ConsistentHashRouter")
+public class ConsistentHashRouter extends Router
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new ConsistentHashRouter(id, name, args);
+        }
+    }
+
+    static final String KEY = "key";
+
+    static final String KEY_PROPERTY = "key_property";
+
+    static final String VIRTUAL_NODES = "virtual_nodes";
+
+    static final String SUBJECT = "subject";
+
+    static final String GROUP_ID = "group_id";
+
+    static final String PROPERTY = "property";
+
+    /**
+     * What the messages are partitioned by: subject, group_id, or property
+     * for the application property named by keyProperty.
+     */
+    @ManagementAttribute("key")
+    protected String _key;
+
+    @ManagementAttribute("keyProperty")
+    protected String _keyProperty;
+
+    /**
+     * The number of points a route of weight 1 is placed at on the ring.
+     */
+    @ManagementAttribute("virtualNodes")
+    protected int _virtualNodes;
+
+    protected final List<ConsistentHashRoute> _routes = new ArrayList<ConsistentHashRoute>();
+
+    protected volatile Ring _ring;
+
+    ConsistentHashRouter(String id, String name, Map<String, Object> args)
+    {
+        super(id, name, args);
+        _key = args.containsKey(KEY) ? (String) args.get(KEY) : SUBJECT;
+        if (PROPERTY.equals(_key))
+        {
+            if (!args.containsKey(KEY_PROPERTY))
+            {
+                throw new IllegalArgumentException("key_property not specified");
+            }
+            _keyProperty = (String) args.get(KEY_PROPERTY);
+        }
+        else if (!SUBJECT.equals(_key) && !GROUP_ID.equals(_key))
+        {
+            throw new IllegalArgumentException("key should be one of subject, group_id or property");
+        }
+        if (args.containsKey(VIRTUAL_NODES))
+        {
+            _virtualNodes = Integer.parseInt(String.valueOf(args.get(VIRTUAL_NODES)));
+        }
+        else
+        {
+            _virtualNodes = Integer.getInteger("splash.router.hash.virtual_nodes", 100);
+        }
+        if (_virtualNodes < 1)
+        {
+            throw new IllegalArgumentException("virtual_nodes should be at least 1");
+        }
+        _ring = new Ring(_routes, _virtualNodes, _altDests);
+    }
+
+    @Override
+    public List<String> route(Message msg)
+    {
+        Object key;
+        if (SUBJECT.equals(_key))
+        {
+            key = msg.getSubject();
+        }
+        else if (GROUP_ID.equals(_key))
+        {
+            key = msg.getGroupId();
+        }
+        else
+        {
+            Map<?, ?> properties = msg.getApplicationProperties();
+            key = properties == null ? null : properties.get(_keyProperty);
+        }
+        return _ring.get(key);
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public synchronized void addRoute(Route route)
+    {
+        _routes.add((ConsistentHashRoute) route);
+        publish();
+    }
+
+    @Override
+    public synchronized void updateRoute(Route route)
+    {
+        // The destination or the weight has changed
+        publish();
+    }
+
+    @Override
+    public synchronized void removeRoute(Route route)
+    {
+        if (_routes.remove(route))
+        {
+            publish();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        super.update(attributes);
+        // The alternate address may have changed
+        publish();
+        return _args;
+    }
+
+    private void publish()
+    {
+        _ring = new Ring(_routes, _virtualNodes, _altDests);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[name=%s, address=%s, alt-address=%s, type=%s]", _name, _address, _altAddress, getType());
+    }
+
+    /**
+     * Spreads the bits of a hash code, as the hash codes of similar keys,
+     * such as customer ids that only differ in their last digits, are close.
+     * This is the finalizer of MurmurHash3.
+     */
+    static int hash(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * An immutable ring, with the points sorted by hash.
+     */
+    static class Ring
+    {
+        final int[] _hashes;
+
+        final List<List<String>> _dests;
+
+        final List<String> _altDests;
+
+        Ring(List<ConsistentHashRoute> routes, int virtualNodes, List<String> altDests)
+        {
+            _altDests = altDests;
+            int count = 0;
+            for (ConsistentHashRoute route : routes)
+            {
+                count += route.getWeight() * virtualNodes;
+            }
+
+            // Sorts the points by hash, with the index of the route in the
+            // low bits
+            long[] points = new long[count];
+            int point = 0;
+            for (int r = 0; r < routes.size(); r++)
+            {
+                String dest = routes.get(r).getDestination();
+                for (int i = 0; i < routes.get(r).getWeight() * virtualNodes; i++)
+                {
+                    points[point++] = ((long) hash((dest + "#" + i).hashCode()) << 32) | r;
+                }
+            }
+            Arrays.sort(points);
+
+            List<List<String>> dests = new ArrayList<List<String>>(routes.size());
+            for (ConsistentHashRoute route : routes)
+            {
+                dests.add(destinations(route.getDestination()));
+            }
+            _hashes = new int[count];
+            _dests = new ArrayList<List<String>>(count);
+            for (int i = 0; i < count; i++)
+            {
+                _hashes[i] = (int) (points[i] >> 32);
+                _dests.add(dests.get((int) points[i]));
+            }
+        }
+
+        List<String> get(Object key)
+        {
+            if (key == null || _hashes.length == 0)
+            {
+                return _altDests;
+            }
+            int index = Arrays.binarySearch(_hashes, hash(key.hashCode()));
+            if (index < 0)
+            {
+                index = -index - 1;
+                if (index == _hashes.length)
+                {
+                    index = 0;
+                }
+            }
+            return _dests.get(index);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.splash.logging.Logger;
+import org.splash.messaging.Message;
+import org.splash.messaging.MessageDisposition;
+import org.splash.messaging.MessagingException;
+import org.splash.messaging.OutboundLink;
+import org.splash.messaging.Tracker;
+
+/**
+ * An outbound link for a single destination, with the credit the peer has
+ * granted it. Messages are only sent while there is credit, and are held in
+ * a bounded backlog otherwise until the peer grants more, so that a slow
+ * destination only holds up the messages routed to it. Queued messages are
+ * retained, so that they are not settled before they have been sent.
+ */
+class DestinationLink
+{
+    private static final Logger _logger = Logger.get(DestinationLink.class);
+
+    static final String CONTEXT_KEY = "DESTINATION_LINK";
+
+    enum Outcome
+    {
+        SENT, QUEUED, FULL, CLOSED
+    }
+
+    private final String _address;
+
+    private final OutboundLink _link;
+
+    private final int _maxBacklog;
+
+    private final DestinationLoad.Registry _loads;
+
+    private final Queue<InboundDelivery> _backlog = new ArrayDeque<InboundDelivery>();
+
+    private final InboundDelivery.InFlight _inFlight = new InboundDelivery.InFlight();
+
+    // Credit last granted by the peer, less the messages sent since, as read
+    // from the link when the peer grants more
+    private int _credit = 0;
+
+    private long _lastUsed = System.currentTimeMillis();
+
+    private boolean _closed = false;
+
+    DestinationLink(String address, OutboundLink link, int maxBacklog, DestinationLoad.Registry loads)
+    {
+        _address = address;
+        _link = link;
+        _maxBacklog = maxBacklog;
+        _loads = loads;
+        link.put(CONTEXT_KEY, this);
+    }
+
+    String getAddress()
+    {
+        return _address;
+    }
+
+    // The copies sent on the link that the destination has yet to settle
+    InboundDelivery.InFlight getInFlight()
+    {
+        return _inFlight;
+    }
+
+    synchronized Outcome send(InboundDelivery delivery) throws MessagingException
+    {
+        if (_closed)
+        {
+            return Outcome.CLOSED;
+        }
+        _lastUsed = System.currentTimeMillis();
+        if (_credit > 0 && _backlog.isEmpty())
+        {
+            transfer(delivery);
+            return Outcome.SENT;
+        }
+        else if (_backlog.size() < _maxBacklog)
+        {
+            delivery.retain();
+            _backlog.add(delivery);
+            return Outcome.QUEUED;
+        }
+        else
+        {
+            return Outcome.FULL;
+        }
+    }
+
+    /**
+     * Sends the messages held back once the peer grants more credit. The
+     * credit is taken from the link, as the messages sent since the grant
+     * was made are not reflected in the credit it carried.
+     */
+    synchronized void creditGranted() throws MessagingException
+    {
+        _credit = _link.getCredit();
+        updateLoad(null);
+        while (_credit > 0 && !_backlog.isEmpty())
+        {
+            InboundDelivery delivery = _backlog.poll();
+            try
+            {
+                transfer(delivery);
+            }
+            finally
+            {
+                delivery.release();
+            }
+        }
+    }
+
+    /**
+     * Closes the link if it has not been used for the given time, has
+     * nothing left to send and no copies left for the destination to settle,
+     * as closing would release those, and the peer would then send the
+     * message again to the destinations that accepted it.
+     */
+    synchronized boolean closeIfIdle(long idleTimeout)
+    {
+        if (!_closed && _backlog.isEmpty() && _inFlight.isEmpty()
+                && System.currentTimeMillis() - _lastUsed >= idleTimeout)
+        {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the link closed, releasing the copies sent on it that are yet to
+     * be settled, and returning the messages that were not sent, which are
+     * still retained.
+     */
+    synchronized Queue<InboundDelivery> close()
+    {
+        _closed = true;
+        try
+        {
+            _link.close();
+        }
+        catch (Exception e)
+        {
+            _logger.warn(e, "Error closing the link for %s", _address);
+        }
+        for (Tracker tracker : _inFlight.releaseAll())
+        {
+            DestinationLoad.settled(tracker);
+        }
+        DestinationLoad load = _loads.get(_address);
+        if (load != null)
+        {
+            load.setCredit(DestinationLoad.UNKNOWN_CREDIT);
+        }
+        Queue<InboundDelivery> unsent = new ArrayDeque<InboundDelivery>(_backlog);
+        _backlog.clear();
+        return unsent;
+    }
+
+    private void transfer(InboundDelivery delivery) throws MessagingException
+    {
+        // A message routed to several destinations is shared by their
+        // links, which may be sending on different threads.
+        Message msg = delivery.getMessage();
+        Tracker tracker;
+        synchronized (msg)
+        {
+            msg.setAddress(_address);
+            try
+            {
+                tracker = _link.send(msg);
+                delivery.track(tracker, _inFlight);
+            }
+            catch (MessagingException e)
+            {
+                // Not sent, so have the peer send it again
+                delivery.update(MessageDisposition.RELEASED);
+                throw e;
+            }
+        }
+        _credit--;
+        updateLoad(tracker);
+    }
+
+    // Counts the copy sent with the tracker, if any, and the credit left for
+    // the routers balancing on this destination
+    private void updateLoad(Tracker tracker)
+    {
+        DestinationLoad load = _loads.get(_address);
+        if (load != null)
+        {
+            if (tracker != null)
+            {
+                load.sent(tracker);
+            }
+            load.setCredit(Math.max(_credit, 0));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.splash.messaging.Tracker;
+
+/**
+ * How busy a destination is: the copies sent to it that it has not yet
+ * settled, and, when it has a link of its own, the credit it has left.
+ * Only kept for the destinations of the routers that balance on it, see
+ * {@link LeastOutstandingRouter}.
+ */
+class DestinationLoad
+{
+    static final String CONTEXT_KEY = "DESTINATION_LOAD";
+
+    // Credit of a destination without a link of its own
+    static final int UNKNOWN_CREDIT = -1;
+
+    private final AtomicInteger _outstanding = new AtomicInteger();
+
+    private volatile int _credit = UNKNOWN_CREDIT;
+
+    // The routers' members using the load, guarded by its registry
+    private int _registrations;
+
+    int getOutstanding()
+    {
+        return _outstanding.get();
+    }
+
+    int getCredit()
+    {
+        return _credit;
+    }
+
+    void setCredit(int credit)
+    {
+        _credit = credit;
+    }
+
+    /**
+     * A destination with no credit left is busier than one with credit or
+     * whose credit is not known, and otherwise the one with the most
+     * outstanding copies is.
+     */
+    boolean isBusierThan(DestinationLoad other)
+    {
+        boolean blocked = _credit == 0;
+        if (blocked != (other._credit == 0))
+        {
+            return blocked;
+        }
+        return _outstanding.get() > other._outstanding.get();
+    }
+
+    /**
+     * Counts a copy sent to the destination until its tracker is settled.
+     */
+    void sent(Tracker tracker)
+    {
+        _outstanding.incrementAndGet();
+        synchronized (tracker)
+        {
+            tracker.put(CONTEXT_KEY, this);
+        }
+        // The peer may have settled it before the load was put on it
+        if (tracker.isSettled())
+        {
+            settled(tracker);
+        }
+    }
+
+    static void settled(Tracker tracker)
+    {
+        DestinationLoad load;
+        synchronized (tracker)
+        {
+            load = (DestinationLoad) tracker.get(CONTEXT_KEY);
+            tracker.put(CONTEXT_KEY, null);
+        }
+        if (load != null)
+        {
+            load._outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * The loads of a router node, by destination address. A load is kept for
+     * as long as a router balancing on its destination has it registered.
+     */
+    static class Registry
+    {
+        private final ConcurrentMap<String, DestinationLoad> _loads = new ConcurrentHashMap<String, DestinationLoad>();
+
+        /**
+         * Returns the load of the destination, or null if no router balances
+         * on it.
+         */
+        DestinationLoad get(String address)
+        {
+            return _loads.get(address);
+        }
+
+        /**
+         * Returns the load of the destination, keeping it until it has been
+         * released as many times as it has been registered.
+         */
+        synchronized DestinationLoad register(String address)
+        {
+            DestinationLoad load = _loads.get(address);
+            if (load == null)
+            {
+                load = new DestinationLoad();
+                _loads.put(address, load);
+            }
+            load._registrations++;
+            return load;
+        }
+
+        /**
+         * Drops a registration of the destination's load, and the load with
+         * its last one.
+         */
+        synchronized void release(String address)
+        {
+            DestinationLoad load = _loads.get(address);
+            if (load != null && --load._registrations == 0)
+            {
+                _loads.remove(address);
+            }
+        }
+    }
+}
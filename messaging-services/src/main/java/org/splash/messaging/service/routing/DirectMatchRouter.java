@@ -21,6 +21,7 @@
 package org.splash.messaging.service.routing;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,8 +52,13 @@ public class DirectMatchRouter extends Router
 
     static final String ROUTING_KEY_0_10 = "x-amqp-0-10.routing-key";
 
+    // Only changed by management, while holding the router's lock
     protected final Map<String, List<Route>> _routes = new HashMap<String, List<Route>>();
 
+    // The destinations for each routing key, replaced as a whole whenever the
+    // routes change so that routing can read it without locking
+    protected volatile Map<String, List<String>> _table = Collections.emptyMap();
+
     DirectMatchRouter(String id, String name, Map<String, Object> args)
     {
         super(id, name, args);
@@ -61,29 +67,45 @@ public class DirectMatchRouter extends Router
     @Override
     public List<String> route(Message msg)
     {
-        List<String> destinations = new ArrayList<String>();
-        String key = msg.getSubject();
-        if (key == null)
+        List<String> destinations = _table.get(key(msg));
+        return destinations == null ? _altDests : destinations;
+    }
+
+    // Reads the table once for the batch, and only looks up a key again
+    // when it differs from that of the message before
+    @Override
+    public void route(List<Message> msgs, int from, int to, List<String>[] destinations)
+    {
+        Map<String, List<String>> table = _table;
+        String lastKey = null;
+        List<String> lastDests = null;
+        for (int i = from; i < to; i++)
         {
-            if (msg.getApplicationProperties() != null && msg.getApplicationProperties().containsKey(ROUTING_KEY_0_10))
+            String key = key(msgs.get(i));
+            if (lastDests == null || !(key == null ? lastKey == null : key.equals(lastKey)))
             {
-                key = (String) msg.getApplicationProperties().get(ROUTING_KEY_0_10);
+                lastDests = table.get(key);
+                if (lastDests == null)
+                {
+                    lastDests = _altDests;
+                }
+                lastKey = key;
             }
+            destinations[i] = lastDests;
         }
+    }
 
-        if (_routes.containsKey(key))
+    static String key(Message msg)
+    {
+        String key = msg.getSubject();
+        if (key == null)
         {
-            for (Route route : _routes.get(key))
+            if (msg.getApplicationProperties() != null && msg.getApplicationProperties().containsKey(ROUTING_KEY_0_10))
             {
-                destinations.add(route.getDestination());
+                key = (String) msg.getApplicationProperties().get(ROUTING_KEY_0_10);
             }
         }
-
-        if (destinations.isEmpty())
-        {
-            destinations.add(_altAddress);
-        }
-        return destinations;
+        return key;
     }
 
     @Override
@@ -93,7 +115,7 @@ public class DirectMatchRouter extends Router
     }
 
     @Override
-    public void addRoute(Route route)
+    public synchronized void addRoute(Route route)
     {
         DirectMatchRoute directRoute = (DirectMatchRoute) route;
         if (_routes.containsKey(directRoute.getPattern()))
@@ -106,16 +128,26 @@ public class DirectMatchRouter extends Router
             list.add(directRoute);
             _routes.put(directRoute.getPattern(), list);
         }
+        publish(directRoute.getPattern());
     }
 
     @Override
-    public void updateRoute(Route route)
+    public synchronized void updateRoute(Route route)
     {
-        addRoute(route);
+        DirectMatchRoute directRoute = (DirectMatchRoute) route;
+        if (_routes.containsKey(directRoute.getPattern()) && _routes.get(directRoute.getPattern()).contains(route))
+        {
+            // The destination has changed
+            publish(directRoute.getPattern());
+        }
+        else
+        {
+            addRoute(route);
+        }
     }
 
     @Override
-    public void removeRoute(Route route)
+    public synchronized void removeRoute(Route route)
     {
         DirectMatchRoute directRoute = (DirectMatchRoute) route;
         if (_routes.containsKey(directRoute.getPattern()))
@@ -125,7 +157,22 @@ public class DirectMatchRouter extends Router
             {
                 _routes.remove(directRoute.getPattern());
             }
+            publish(directRoute.getPattern());
+        }
+    }
+
+    private void publish(String key)
+    {
+        Map<String, List<String>> table = new HashMap<String, List<String>>(_table);
+        if (_routes.containsKey(key))
+        {
+            table.put(key, destinations(_routes.get(key)));
+        }
+        else
+        {
+            table.remove(key);
         }
+        _table = table;
     }
 
     @Override
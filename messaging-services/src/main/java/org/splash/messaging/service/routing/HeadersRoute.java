@@ -0,0 +1,214 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+import org.splash.messaging.service.management.ManagementAttribute;
+
+/**
+ * A route for messages whose application properties match a set of
+ * key/value pairs, either all of them or any one of them. A pair with a null
+ * value only requires the key to be present. With match "all" a route
+ * without pairs matches every message, with "any" it matches none.
+ */
+@ManageableEntityType("org.splash.HeadersRoute")
+public class HeadersRoute extends Route
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new HeadersRoute(id, name, args);
+        }
+    }
+
+    static final String HEADERS = "headers";
+
+    static final String MATCH = "match";
+
+    static final String MATCH_ALL = "all";
+
+    static final String MATCH_ANY = "any";
+
+    @ManagementAttribute("headers")
+    protected Map<String, Object> _headers;
+
+    @ManagementAttribute("match")
+    protected String _match;
+
+    public HeadersRoute(String id, String name, Map<String, Object> args) throws IllegalArgumentException
+    {
+        super(id, name, args);
+        if (args.containsKey(HEADERS))
+        {
+            setHeaders(args.get(HEADERS));
+        }
+        else
+        {
+            throw new IllegalArgumentException("headers not specified");
+        }
+        setMatch(args.containsKey(MATCH) ? args.get(MATCH) : MATCH_ALL);
+    }
+
+    Map<String, Object> getHeaders()
+    {
+        return _headers;
+    }
+
+    boolean isMatchAny()
+    {
+        return MATCH_ANY.equals(_match);
+    }
+
+    /**
+     * Checks the pairs of the route against the application properties of a
+     * message, whose values have not been normalized.
+     */
+    boolean matches(Map<?, ?> properties)
+    {
+        if (properties == null)
+        {
+            return !isMatchAny() && _headers.isEmpty();
+        }
+        for (Map.Entry<String, Object> header : _headers.entrySet())
+        {
+            boolean matched = properties.containsKey(header.getKey())
+                    && (header.getValue() == null || header.getValue().equals(
+                            normalize(properties.get(header.getKey()))));
+            if (matched && isMatchAny())
+            {
+                return true;
+            }
+            else if (!matched && !isMatchAny())
+            {
+                return false;
+            }
+        }
+        return !isMatchAny();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setHeaders(Object headers)
+    {
+        if (!(headers instanceof Map))
+        {
+            throw new IllegalArgumentException("headers should be a map");
+        }
+        Map<String, Object> normalized = new HashMap<String, Object>();
+        for (Map.Entry<Object, Object> header : ((Map<Object, Object>) headers).entrySet())
+        {
+            normalized.put(String.valueOf(header.getKey()), normalize(header.getValue()));
+        }
+        _args.put(HEADERS, headers);
+        _headers = Collections.unmodifiableMap(normalized);
+    }
+
+    private void setMatch(Object match)
+    {
+        if (!MATCH_ALL.equals(match) && !MATCH_ANY.equals(match))
+        {
+            throw new IllegalArgumentException("match should be either all or any");
+        }
+        _args.put(MATCH, match);
+        _match = (String) match;
+    }
+
+    /**
+     * Maps values that are equal but for their type onto one, as the values
+     * given in a route seldom have the exact type of those in the messages.
+     * Integral numbers become longs, floating point numbers doubles and
+     * character sequences, such as symbols, strings.
+     */
+    static Object normalize(Object value)
+    {
+        if (value instanceof Double || value instanceof Long || value instanceof String)
+        {
+            return value;
+        }
+        else if (value instanceof Float)
+        {
+            return ((Float) value).doubleValue();
+        }
+        else if (value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+        else if (value instanceof CharSequence)
+        {
+            return value.toString();
+        }
+        return value;
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        // The router indexes the routes by their pairs, so you need to
+        // remove the old entry and add the updated entry
+        if (attributes.containsKey(HEADERS) || attributes.containsKey(MATCH))
+        {
+            _router.removeRoute(this);
+            try
+            {
+                if (attributes.containsKey(HEADERS))
+                {
+                    setHeaders(attributes.get(HEADERS));
+                }
+                if (attributes.containsKey(MATCH))
+                {
+                    setMatch(attributes.get(MATCH));
+                }
+            }
+            finally
+            {
+                _router.addRoute(this);
+            }
+        }
+        super.update(attributes);
+        return _args;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[headers=%s, match=%s, destination=%s]", _headers, _match, _dest);
+    }
+}
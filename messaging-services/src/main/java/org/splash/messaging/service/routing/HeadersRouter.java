@@ -0,0 +1,329 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.splash.messaging.Message;
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+
+/**
+ * Routes on the application properties of a message, see
+ * {@link HeadersRoute}.
+ *
+ * The routes are held in an inverted index from each key/value pair, and
+ * each key required to be present, to the set of routes that name it. A
+ * message only looks up its own properties, so the cost of matching depends
+ * on the properties of the message and the routes that share them rather
+ * than the number of routes. Routes that match on all of their pairs are
+ * then checked against the message, as sharing one pair does not make them
+ * match.
+ *
+ * The index is immutable and replaced whenever the routes change, so
+ * messages are routed without holding the router's lock.
+ */
+@ManageableEntityType("org.splash.HeadersRouter")
+public class HeadersRouter extends Router
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new HeadersRouter(id, name, args);
+        }
+    }
+
+    protected final List<HeadersRoute> _routes = new ArrayList<HeadersRoute>();
+
+    protected volatile Index _index;
+
+    HeadersRouter(String id, String name, Map<String, Object> args)
+    {
+        super(id, name, args);
+        _index = new Index(_routes, _altDests);
+    }
+
+    @Override
+    public List<String> route(Message msg)
+    {
+        return _index.match(msg.getApplicationProperties());
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public synchronized void addRoute(Route route)
+    {
+        _routes.add((HeadersRoute) route);
+        publish();
+    }
+
+    @Override
+    public synchronized void updateRoute(Route route)
+    {
+        // The destination has changed
+        publish();
+    }
+
+    @Override
+    public synchronized void removeRoute(Route route)
+    {
+        if (_routes.remove(route))
+        {
+            publish();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        super.update(attributes);
+        // The alternate address may have changed
+        publish();
+        return _args;
+    }
+
+    private void publish()
+    {
+        _index = new Index(_routes, _altDests);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[name=%s, address=%s, alt-address=%s, type=%s]", _name, _address, _altAddress, getType());
+    }
+
+    /**
+     * An immutable snapshot of the routes, with a bit per route in the sets
+     * it keeps for each key/value pair.
+     */
+    static class Index
+    {
+        final HeadersRoute[] _routes;
+
+        final List<List<String>> _dests = new ArrayList<List<String>>();
+
+        final Map<String, Map<Object, BitSet>> _values = new HashMap<String, Map<Object, BitSet>>();
+
+        final Map<String, BitSet> _present = new HashMap<String, BitSet>();
+
+        // Routes matching on all of no pairs, which match every message
+        final BitSet _always = new BitSet();
+
+        final List<String> _altDests;
+
+        Index(List<HeadersRoute> routes, List<String> altDests)
+        {
+            _routes = routes.toArray(new HeadersRoute[routes.size()]);
+            _altDests = altDests;
+            for (int i = 0; i < _routes.length; i++)
+            {
+                HeadersRoute route = _routes[i];
+                _dests.add(destinations(route.getDestination()));
+                if (route.getHeaders().isEmpty() && !route.isMatchAny())
+                {
+                    _always.set(i);
+                }
+                for (Map.Entry<String, Object> header : route.getHeaders().entrySet())
+                {
+                    BitSet bits;
+                    if (header.getValue() == null)
+                    {
+                        bits = _present.get(header.getKey());
+                        if (bits == null)
+                        {
+                            bits = new BitSet();
+                            _present.put(header.getKey(), bits);
+                        }
+                    }
+                    else
+                    {
+                        Map<Object, BitSet> values = _values.get(header.getKey());
+                        if (values == null)
+                        {
+                            values = new HashMap<Object, BitSet>();
+                            _values.put(header.getKey(), values);
+                        }
+                        bits = values.get(header.getValue());
+                        if (bits == null)
+                        {
+                            bits = new BitSet();
+                            values.put(header.getValue(), bits);
+                        }
+                    }
+                    bits.set(i);
+                }
+            }
+        }
+
+        List<String> match(Map<?, ?> properties)
+        {
+            Scratch scratch = _scratch.get();
+            BitSet candidates = scratch._candidates;
+            candidates.clear();
+            candidates.or(_always);
+            if (properties != null)
+            {
+                for (Map.Entry<?, ?> property : properties.entrySet())
+                {
+                    if (!(property.getKey() instanceof String))
+                    {
+                        continue;
+                    }
+                    BitSet bits = _present.get(property.getKey());
+                    if (bits != null)
+                    {
+                        candidates.or(bits);
+                    }
+                    Map<Object, BitSet> values = _values.get(property.getKey());
+                    if (values != null)
+                    {
+                        bits = values.get(HeadersRoute.normalize(property.getValue()));
+                        if (bits != null)
+                        {
+                            candidates.or(bits);
+                        }
+                    }
+                }
+            }
+
+            BitSet matched = scratch._matched;
+            matched.clear();
+            int first = -1;
+            int count = 0;
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+            {
+                HeadersRoute route = _routes[i];
+                if (route.isMatchAny() || route.matches(properties))
+                {
+                    matched.set(i);
+                    if (first < 0)
+                    {
+                        first = i;
+                    }
+                    count++;
+                }
+            }
+            if (count == 0)
+            {
+                return _altDests;
+            }
+            else if (count == 1)
+            {
+                return _dests.get(first);
+            }
+            return scratch.merged(this, matched);
+        }
+
+        // The destinations of the matched routes, each once
+        List<String> merge(BitSet matched)
+        {
+            Set<String> merged = new LinkedHashSet<String>();
+            for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1))
+            {
+                merged.add(_routes[i].getDestination());
+            }
+            return Collections.unmodifiableList(new ArrayList<String>(merged));
+        }
+    }
+
+    // Reused by each thread for the messages it routes
+    private static final ThreadLocal<Scratch> _scratch = new ThreadLocal<Scratch>()
+    {
+        @Override
+        protected Scratch initialValue()
+        {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * The candidate and matching routes of the message being routed, cleared
+     * for each message. The destinations merged from several routes are kept
+     * for the most recent sets of routes, as the same ones tend to match
+     * again, and are only reused for the index they were merged from.
+     */
+    private static final class Scratch
+    {
+        private static final int MERGE_CACHE_SIZE = 16;
+
+        private final BitSet _candidates = new BitSet();
+
+        private final BitSet _matched = new BitSet();
+
+        private final Merge[] _merges = new Merge[MERGE_CACHE_SIZE];
+
+        private int _hand;
+
+        List<String> merged(Index index, BitSet matched)
+        {
+            for (Merge merge : _merges)
+            {
+                if (merge != null && merge._index == index && merge._matched.equals(matched))
+                {
+                    return merge._dests;
+                }
+            }
+            Merge merge = new Merge(index, (BitSet) matched.clone(), index.merge(matched));
+            _merges[_hand] = merge;
+            _hand = (_hand + 1) % MERGE_CACHE_SIZE;
+            return merge._dests;
+        }
+    }
+
+    private static final class Merge
+    {
+        private final Index _index;
+
+        private final BitSet _matched;
+
+        private final List<String> _dests;
+
+        Merge(Index index, BitSet matched, List<String> dests)
+        {
+            _index = index;
+            _matched = matched;
+            _dests = dests;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.splash.messaging.MessageDisposition;
+import org.splash.messaging.Tracker;
+import org.splash.messaging.proton.InboundMessage;
+
+/**
+ * A received message on its way through the router. It counts the copies
+ * still to be settled by their destinations, and completes in the
+ * {@link SettlementWindow} of its session with the outcome of all of them
+ * once the last one is.
+ */
+class InboundDelivery
+{
+    static final String CONTEXT_KEY = "INBOUND_DELIVERY";
+
+    static final String IN_FLIGHT_KEY = "IN_FLIGHT";
+
+    private final InboundMessage _msg;
+
+    private final SettlementWindow _window;
+
+    // Starts with a hold for routing, so that the copies settled while the
+    // message is still being routed do not complete it
+    private final AtomicInteger _outstanding = new AtomicInteger(1);
+
+    private MessageDisposition _outcome = MessageDisposition.ACCEPTED;
+
+    InboundDelivery(InboundMessage msg, SettlementWindow window)
+    {
+        _msg = msg;
+        _window = window;
+    }
+
+    InboundMessage getMessage()
+    {
+        return _msg;
+    }
+
+    void retain()
+    {
+        _outstanding.incrementAndGet();
+    }
+
+    void release()
+    {
+        if (_outstanding.decrementAndGet() == 0)
+        {
+            _window.completed(_msg, getOutcome());
+        }
+    }
+
+    /**
+     * Releases a copy, settled by its destination with the given outcome.
+     */
+    void release(MessageDisposition outcome)
+    {
+        update(outcome);
+        release();
+    }
+
+    /**
+     * Keeps the worst outcome seen: a rejection over a release over an
+     * acceptance. Copies settled without an outcome count as accepted.
+     */
+    synchronized void update(MessageDisposition outcome)
+    {
+        if (outcome == MessageDisposition.REJECTED
+                || (outcome == MessageDisposition.RELEASED && _outcome == MessageDisposition.ACCEPTED))
+        {
+            _outcome = outcome;
+        }
+    }
+
+    synchronized MessageDisposition getOutcome()
+    {
+        return _outcome;
+    }
+
+    /**
+     * Waits for the tracker of a copy that was just sent to be settled.
+     */
+    void track(Tracker tracker)
+    {
+        track(tracker, null);
+    }
+
+    /**
+     * Waits for the tracker of a copy that was just sent on a link of its
+     * own to be settled, holding it in the copies in flight on the link
+     * until then.
+     */
+    void track(Tracker tracker, InFlight inFlight)
+    {
+        retain();
+        synchronized (tracker)
+        {
+            tracker.put(CONTEXT_KEY, this);
+            if (inFlight != null)
+            {
+                inFlight.add(tracker);
+                tracker.put(IN_FLIGHT_KEY, inFlight);
+            }
+        }
+        // The peer may have settled it before the delivery was put on it
+        if (tracker.isSettled())
+        {
+            settled(tracker);
+        }
+    }
+
+    /**
+     * Releases the copy sent with the tracker, if it has not been already.
+     */
+    static void settled(Tracker tracker)
+    {
+        settled(tracker, tracker.getDisposition());
+    }
+
+    private static void settled(Tracker tracker, MessageDisposition outcome)
+    {
+        InboundDelivery delivery;
+        InFlight inFlight;
+        synchronized (tracker)
+        {
+            delivery = (InboundDelivery) tracker.get(CONTEXT_KEY);
+            inFlight = (InFlight) tracker.get(IN_FLIGHT_KEY);
+            tracker.put(CONTEXT_KEY, null);
+            tracker.put(IN_FLIGHT_KEY, null);
+        }
+        if (inFlight != null)
+        {
+            inFlight.remove(tracker);
+        }
+        if (delivery != null)
+        {
+            delivery.release(outcome);
+        }
+    }
+
+    /**
+     * The copies sent on a link that its destination has yet to settle. They
+     * are released should the link close first, as they will not be settled
+     * then, so that the messages complete and the peer sends them again.
+     */
+    static final class InFlight
+    {
+        private final Set<Tracker> _trackers = Collections.newSetFromMap(new IdentityHashMap<Tracker, Boolean>());
+
+        synchronized void add(Tracker tracker)
+        {
+            _trackers.add(tracker);
+        }
+
+        synchronized void remove(Tracker tracker)
+        {
+            _trackers.remove(tracker);
+        }
+
+        synchronized boolean isEmpty()
+        {
+            return _trackers.isEmpty();
+        }
+
+        /**
+         * Releases the copies in flight, returning their trackers.
+         */
+        List<Tracker> releaseAll()
+        {
+            List<Tracker> trackers;
+            synchronized (this)
+            {
+                trackers = new ArrayList<Tracker>(_trackers);
+                _trackers.clear();
+            }
+            for (Tracker tracker : trackers)
+            {
+                settled(tracker, MessageDisposition.RELEASED);
+            }
+            return trackers;
+        }
+    }
+}
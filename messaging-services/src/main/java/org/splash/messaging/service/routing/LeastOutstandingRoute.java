@@ -0,0 +1,68 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.Map;
+
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+
+/**
+ * Adds a destination to those a {@link LeastOutstandingRouter} balances
+ * between.
+ */
+@ManageableEntityType("org.splash.LeastOutstandingRoute")
+public class LeastOutstandingRoute extends Route
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new LeastOutstandingRoute(id, name, args);
+        }
+    }
+
+    public LeastOutstandingRoute(String id, String name, Map<String, Object> args) throws IllegalArgumentException
+    {
+        super(id, name, args);
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[destination=%s]", _dest);
+    }
+}
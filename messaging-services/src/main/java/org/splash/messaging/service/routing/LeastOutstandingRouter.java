@@ -0,0 +1,212 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.splash.messaging.Message;
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+
+/**
+ * Balances messages between competing consumers, sending each to the least
+ * busy of its destinations, see {@link DestinationLoad}, so that a slow
+ * consumer is not given as much work as the others as it would be in turn.
+ *
+ * Rather than comparing every destination, two are picked at random and the
+ * message goes to the less busy of them. This keeps routing O(1) with
+ * hundreds of destinations, while still steering clear of the busy ones,
+ * and spreads messages routed at the same time, before the loads they add
+ * are seen, instead of sending all of them to the one least busy
+ * destination.
+ */
+@ManageableEntityType("org.splash.LeastOutstandingRouter")
+public class LeastOutstandingRouter extends Router
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new LeastOutstandingRouter(id, name, args);
+        }
+    }
+
+    private static final ThreadLocal<long[]> _seeds = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[] { System.nanoTime() ^ Thread.currentThread().getId() * 0x9E3779B97F4A7C15L | 1 };
+        }
+    };
+
+    protected final List<LeastOutstandingRoute> _routes = new ArrayList<LeastOutstandingRoute>();
+
+    // Set by the router node, which counts the copies sent to each
+    // destination
+    protected DestinationLoad.Registry _loads = new DestinationLoad.Registry();
+
+    protected volatile Member[] _members;
+
+    // The destinations whose loads the members have registered
+    private List<String> _registered = new ArrayList<String>();
+
+    LeastOutstandingRouter(String id, String name, Map<String, Object> args)
+    {
+        super(id, name, args);
+        publish();
+    }
+
+    synchronized void setLoads(DestinationLoad.Registry loads)
+    {
+        releaseLoads();
+        _loads = loads;
+        publish();
+    }
+
+    private void releaseLoads()
+    {
+        for (String dest : _registered)
+        {
+            _loads.release(dest);
+        }
+        _registered.clear();
+    }
+
+    @Override
+    public List<String> route(Message msg)
+    {
+        Member[] members = _members;
+        if (members.length == 0)
+        {
+            return _altDests;
+        }
+        else if (members.length == 1)
+        {
+            return members[0]._dests;
+        }
+        int first = random(members.length);
+        int second = random(members.length - 1);
+        if (second >= first)
+        {
+            second++;
+        }
+        Member member = members[first]._load.isBusierThan(members[second]._load) ? members[second] : members[first];
+        return member._dests;
+    }
+
+    // A xorshift generator per thread, as a shared one would be contended
+    private static int random(int bound)
+    {
+        long[] seed = _seeds.get();
+        long x = seed[0];
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        seed[0] = x;
+        return (int) ((x >>> 33) % bound);
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public synchronized void addRoute(Route route)
+    {
+        _routes.add((LeastOutstandingRoute) route);
+        publish();
+    }
+
+    @Override
+    public synchronized void updateRoute(Route route)
+    {
+        // The destination has changed
+        publish();
+    }
+
+    @Override
+    public synchronized void removeRoute(Route route)
+    {
+        if (_routes.remove(route))
+        {
+            publish();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        super.update(attributes);
+        // The alternate address may have changed
+        publish();
+        return _args;
+    }
+
+    // The loads of the new members are registered before those of the
+    // previous ones are released, so those they share are kept
+    private void publish()
+    {
+        Member[] members = new Member[_routes.size()];
+        List<String> registered = new ArrayList<String>(members.length);
+        for (int i = 0; i < members.length; i++)
+        {
+            String dest = _routes.get(i).getDestination();
+            members[i] = new Member(destinations(dest), _loads.register(dest));
+            registered.add(dest);
+        }
+        _members = members;
+        releaseLoads();
+        _registered = registered;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[name=%s, address=%s, alt-address=%s, type=%s]", _name, _address, _altAddress, getType());
+    }
+
+    static class Member
+    {
+        final List<String> _dests;
+
+        final DestinationLoad _load;
+
+        Member(List<String> dests, DestinationLoad load)
+        {
+            _dests = dests;
+            _load = load;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.Map;
+
+import org.splash.logging.Logger;
+import org.splash.messaging.InboundLink;
+import org.splash.messaging.MessageDisposition;
+import org.splash.messaging.MessagingException;
+import org.splash.messaging.NetworkException;
+import org.splash.messaging.OutboundLink;
+import org.splash.messaging.management.ManagementException;
+import org.splash.messaging.management.ManagementPropertyNames;
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+import org.splash.messaging.service.management.ManagementAttribute;
+
+/**
+ * Connects the messages received on an address straight to a fixed
+ * destination, for streams that need no per message routing. Each message
+ * is sent on as it was received, without decoding any of it, and is
+ * settled with the outcome the destination settles it with.
+ *
+ * The credit the destination grants its link is passed on to the inbound
+ * link, so the sender is held back by the destination itself rather than
+ * by a backlog in the node.
+ *
+ * If the link to the destination closes, the route detaches, releasing the
+ * messages the destination has not settled, and the router node attaches
+ * it again after a backoff that doubles with each attempt until the
+ * destination grants credit.
+ */
+@ManageableEntityType("org.splash.LinkRoute")
+public class LinkRoute implements ManageableEntity
+{
+    private static final Logger _logger = Logger.get(LinkRoute.class);
+
+    static final String CONTEXT_KEY = "LINK_ROUTE";
+
+    static final String ADDRESS = "address";
+
+    static final String DESTINATION = "destination";
+
+    static final long MIN_BACKOFF = Long.getLong("router.link_route_min_backoff", 1000);
+
+    static final long MAX_BACKOFF = Long.getLong("router.link_route_max_backoff", 30000);
+
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new LinkRoute(id, name, args);
+        }
+    }
+
+    private final String _id;
+
+    private final String _name;
+
+    private final Map<String, Object> _args;
+
+    @ManagementAttribute("address")
+    private final String _address;
+
+    @ManagementAttribute("destination")
+    private final String _dest;
+
+    private InboundLink _inLink;
+
+    private OutboundLink _outLink;
+
+    private final InboundDelivery.InFlight _inFlight = new InboundDelivery.InFlight();
+
+    // Credit issued on the inbound link that the sender has not used yet
+    private int _issued = 0;
+
+    // Attempts to attach made since the destination last granted credit
+    private int _attempts = 0;
+
+    private boolean _deleted = false;
+
+    public LinkRoute(String id, String name, Map<String, Object> args) throws IllegalArgumentException
+    {
+        _id = id;
+        _name = name;
+        _args = args;
+        if (args.containsKey(ADDRESS))
+        {
+            _address = (String) args.get(ADDRESS);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Link route address not specified");
+        }
+        if (args.containsKey(DESTINATION))
+        {
+            _dest = (String) args.get(DESTINATION);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Link route destination not specified");
+        }
+        args.put(ManagementPropertyNames.NAME, name);
+        args.put(ManagementPropertyNames.IDENTITY, id);
+    }
+
+    String getAddress()
+    {
+        return _address;
+    }
+
+    String getDestination()
+    {
+        return _dest;
+    }
+
+    /**
+     * Sets the links of the route, returning false if it has been deleted
+     * meanwhile, in which case the links are the caller's to close.
+     */
+    synchronized boolean setLinks(InboundLink inLink, OutboundLink outLink)
+    {
+        if (_deleted)
+        {
+            return false;
+        }
+        _inLink = inLink;
+        _outLink = outLink;
+        _attempts++;
+        inLink.put(CONTEXT_KEY, this);
+        outLink.put(CONTEXT_KEY, this);
+        return true;
+    }
+
+    synchronized boolean isDeleted()
+    {
+        return _deleted;
+    }
+
+    /**
+     * How long to wait before attaching again, doubling with each attempt
+     * made since the destination last granted credit.
+     */
+    synchronized long getBackoff()
+    {
+        return Math.min(MIN_BACKOFF << Math.min(_attempts, 16), MAX_BACKOFF);
+    }
+
+    /**
+     * Closes the links of the route once the given link to the destination
+     * has closed, releasing the messages the destination has not settled so
+     * that the sender delivers them again. Returns false if the link is not
+     * the route's current one or the route has been deleted, as it is then
+     * not to be attached again.
+     */
+    boolean detach(OutboundLink closed)
+    {
+        synchronized (this)
+        {
+            if (closed != _outLink)
+            {
+                return false;
+            }
+        }
+        closeLinks();
+        return !isDeleted();
+    }
+
+    private void closeLinks()
+    {
+        InboundLink inLink;
+        OutboundLink outLink;
+        synchronized (this)
+        {
+            inLink = _inLink;
+            outLink = _outLink;
+            _inLink = null;
+            _outLink = null;
+            _issued = 0;
+        }
+        _inFlight.releaseAll();
+        try
+        {
+            if (inLink != null)
+            {
+                inLink.close();
+            }
+            if (outLink != null)
+            {
+                outLink.close();
+            }
+        }
+        catch (MessagingException e)
+        {
+            _logger.warn(e, "Error closing the links for address %s", _address);
+        }
+    }
+
+    synchronized void forward(InboundDelivery delivery)
+    {
+        if (_outLink == null)
+        {
+            // Detached, the sender delivers it again once attached
+            delivery.update(MessageDisposition.RELEASED);
+            return;
+        }
+        _issued--;
+        try
+        {
+            delivery.track(_outLink.relay(delivery.getMessage()), _inFlight);
+        }
+        catch (NetworkException e)
+        {
+            _logger.warn(e, "Network error when relaying message from %s to %s", _address, _dest);
+            delivery.update(MessageDisposition.RELEASED);
+        }
+        catch (MessagingException e)
+        {
+            _logger.warn(e, "Exception when relaying message from %s to %s", _address, _dest);
+            delivery.update(MessageDisposition.RELEASED);
+        }
+    }
+
+    /**
+     * Tops the credit of the inbound link up to that granted by the
+     * destination on the route's current link.
+     */
+    synchronized void setCredit(OutboundLink outLink, int credit) throws MessagingException
+    {
+        if (outLink != _outLink)
+        {
+            return;
+        }
+        if (credit > 0)
+        {
+            _attempts = 0;
+        }
+        if (credit > _issued)
+        {
+            _inLink.setCredits(credit - _issued);
+            _issued = credit;
+        }
+    }
+
+    // ----------- Management ---------------
+    @Override
+    public String getName()
+    {
+        return _name;
+    }
+
+    @Override
+    public String getID()
+    {
+        return _id;
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public Map<String, Object> read()
+    {
+        return _args;
+    }
+
+    @Override
+    public Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        if (attributes.containsKey(ADDRESS) || attributes.containsKey(DESTINATION))
+        {
+            throw new IllegalArgumentException("The address and destination of a link route cannot be changed");
+        }
+        return _args;
+    }
+
+    @Override
+    public void delete() throws ManagementException
+    {
+        synchronized (this)
+        {
+            _deleted = true;
+        }
+        closeLinks();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[address=%s, destination=%s]", _address, _dest);
+    }
+}
@@ -0,0 +1,811 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches a key against a set of regular expressions in a single pass, by
+ * combining the patterns into one automaton whose deterministic states are
+ * built lazily, as keys are matched, and cached.
+ *
+ * Patterns are compiled one at a time into {@link Fragment}s, so a change to
+ * the pattern set only compiles the pattern that was added and creates a new
+ * automaton over the existing fragments, whose states are then rebuilt as
+ * they are needed. Only the regular subset of java.util.regex is supported:
+ * literals, '.', character classes, the \d, \w and \s classes, groups,
+ * alternation and greedy or reluctant quantifiers. {@link #compile(String)}
+ * returns null for anything else, such as back references, look-around,
+ * possessive quantifiers or embedded flags, and those patterns need to be
+ * matched on their own.
+ *
+ * Keys can be matched from any number of threads. States are only added to
+ * the cache while holding the automaton's lock, and states that have already
+ * been built are followed without it.
+ */
+final class RegexAutomaton<T>
+{
+    static final int MAX_STATES = Integer.getInteger("splash.router.automaton.max_states", 10000);
+
+    static final int MAX_FRAGMENT_STATES = 10000;
+
+    private final IdentityHashMap<Fragment, T> _values;
+
+    // Guarded by this
+    private final Map<Set<NfaState>, DfaState<T>> _states = new HashMap<Set<NfaState>, DfaState<T>>();
+
+    private volatile DfaState<T> _start;
+
+    RegexAutomaton(Map<Fragment, T> patterns)
+    {
+        _values = new IdentityHashMap<Fragment, T>(patterns);
+        synchronized (this)
+        {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the values of all patterns that match the whole key, or null if
+     * the key can't be matched here, as it contains surrogate pairs, which
+     * java.util.regex matches as a single character.
+     */
+    List<T> match(CharSequence key)
+    {
+        DfaState<T> state = _start;
+        for (int i = 0; i < key.length() && !state.isDead(); i++)
+        {
+            char c = key.charAt(i);
+            if (Character.isSurrogate(c))
+            {
+                return null;
+            }
+            state = next(state, c);
+        }
+        return state._matches;
+    }
+
+    private DfaState<T> next(DfaState<T> state, char c)
+    {
+        DfaState<T> next = state.get(c);
+        return next == null ? build(state, c) : next;
+    }
+
+    private synchronized DfaState<T> build(DfaState<T> state, char c)
+    {
+        DfaState<T> next = state.get(c);
+        if (next == null)
+        {
+            if (_states.size() >= MAX_STATES)
+            {
+                // Start over rather than let the cache grow without bound,
+                // the states that are still needed are simply built again.
+                Set<NfaState> current = state._nfaStates;
+                reset();
+                state = state(current);
+            }
+            Set<NfaState> targets = new HashSet<NfaState>();
+            for (NfaState s : state._nfaStates)
+            {
+                if (s._chars != null && s._chars.contains(c))
+                {
+                    closure(s._next, targets);
+                }
+            }
+            next = state(targets);
+            state.put(c, next);
+        }
+        return next;
+    }
+
+    private void reset()
+    {
+        _states.clear();
+        Set<NfaState> start = new HashSet<NfaState>();
+        for (Fragment fragment : _values.keySet())
+        {
+            closure(fragment._start, start);
+        }
+        _start = state(start);
+    }
+
+    private DfaState<T> state(Set<NfaState> nfaStates)
+    {
+        DfaState<T> state = _states.get(nfaStates);
+        if (state == null)
+        {
+            List<T> matches = new ArrayList<T>(1);
+            for (NfaState s : nfaStates)
+            {
+                if (s._owner != null)
+                {
+                    matches.add(_values.get(s._owner));
+                }
+            }
+            state = new DfaState<T>(nfaStates, matches.isEmpty() ? Collections.<T> emptyList() : matches);
+            _states.put(nfaStates, state);
+        }
+        return state;
+    }
+
+    // Adds the states reachable through empty transitions, keeping only the
+    // ones that consume a character or accept, as the rest don't tell the
+    // deterministic states apart.
+    private static void closure(NfaState state, Set<NfaState> states)
+    {
+        closure(state, states, new HashSet<NfaState>());
+    }
+
+    private static void closure(NfaState state, Set<NfaState> states, Set<NfaState> visited)
+    {
+        if (!visited.add(state))
+        {
+            return;
+        }
+        if (state._empty != null)
+        {
+            for (NfaState s : state._empty)
+            {
+                closure(s, states, visited);
+            }
+        }
+        else
+        {
+            states.add(state);
+        }
+    }
+
+    /**
+     * Compiles a pattern on its own, so that it can be combined with others.
+     * Returns null if the pattern uses anything outside the supported subset.
+     */
+    static Fragment compile(String regex)
+    {
+        try
+        {
+            Parser parser = new Parser(regex);
+            Node node = parser.parse();
+            Fragment fragment = new Fragment();
+            NfaState accept = new NfaState(fragment);
+            fragment._start = node.build(accept, new int[] { MAX_FRAGMENT_STATES });
+            return fragment;
+        }
+        catch (UnsupportedPatternException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A compiled pattern.
+     */
+    static final class Fragment
+    {
+        private NfaState _start;
+    }
+
+    /**
+     * A set of states of the patterns, where the transitions are filled in as
+     * they are first taken. They may be read without holding the automaton's
+     * lock, and a missing transition is then simply built while holding it.
+     */
+    private static final class DfaState<V>
+    {
+        private final Set<NfaState> _nfaStates;
+
+        private final List<V> _matches;
+
+        private final DfaState<V>[] _ascii;
+
+        private volatile Map<Character, DfaState<V>> _other;
+
+        DfaState(Set<NfaState> nfaStates, List<V> matches)
+        {
+            _nfaStates = nfaStates;
+            _matches = matches;
+            _ascii = newStates(128);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> DfaState<V>[] newStates(int count)
+        {
+            return (DfaState<V>[]) new DfaState<?>[count];
+        }
+
+        boolean isDead()
+        {
+            return _nfaStates.isEmpty();
+        }
+
+        DfaState<V> get(char c)
+        {
+            if (c < 128)
+            {
+                return _ascii[c];
+            }
+            Map<Character, DfaState<V>> other = _other;
+            return other == null ? null : other.get(c);
+        }
+
+        void put(char c, DfaState<V> state)
+        {
+            if (c < 128)
+            {
+                _ascii[c] = state;
+            }
+            else
+            {
+                if (_other == null)
+                {
+                    _other = new ConcurrentHashMap<Character, DfaState<V>>();
+                }
+                _other.put(c, state);
+            }
+        }
+    }
+
+    /**
+     * A state that either consumes a character in the set and moves to the
+     * next state, moves to any of the empty transitions without consuming
+     * one, or accepts for the pattern that owns it.
+     */
+    private static final class NfaState
+    {
+        private CharSet _chars;
+
+        private NfaState _next;
+
+        private NfaState[] _empty;
+
+        private final Fragment _owner;
+
+        NfaState(CharSet chars, NfaState next)
+        {
+            _chars = chars;
+            _next = next;
+            _owner = null;
+        }
+
+        NfaState(NfaState... empty)
+        {
+            _empty = empty;
+            _owner = null;
+        }
+
+        NfaState(Fragment owner)
+        {
+            _owner = owner;
+        }
+    }
+
+    /**
+     * Sorted, disjoint and inclusive ranges of characters.
+     */
+    static final class CharSet
+    {
+        static final CharSet DIGIT = new CharSet().add('0', '9');
+
+        static final CharSet WORD = new CharSet().add('a', 'z').add('A', 'Z').add('_', '_').add('0', '9');
+
+        static final CharSet SPACE = new CharSet().add(' ', ' ').add('\t', '\r');
+
+        static final CharSet LINE_TERMINATOR = new CharSet().add('\n', '\n').add('\r', '\r').add('\u0085', '\u0085')
+                .add('\u2028', '\u2029');
+
+        static final CharSet DOT = LINE_TERMINATOR.negate();
+
+        private int[] _ranges = new int[0];
+
+        boolean contains(char c)
+        {
+            int low = 0;
+            int high = _ranges.length / 2 - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                if (c < _ranges[2 * mid])
+                {
+                    high = mid - 1;
+                }
+                else if (c > _ranges[2 * mid + 1])
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        CharSet add(int from, int to)
+        {
+            int[] ranges = Arrays.copyOf(_ranges, _ranges.length + 2);
+            ranges[ranges.length - 2] = from;
+            ranges[ranges.length - 1] = to;
+            _ranges = normalize(ranges);
+            return this;
+        }
+
+        CharSet add(CharSet other)
+        {
+            int[] ranges = Arrays.copyOf(_ranges, _ranges.length + other._ranges.length);
+            System.arraycopy(other._ranges, 0, ranges, _ranges.length, other._ranges.length);
+            _ranges = normalize(ranges);
+            return this;
+        }
+
+        CharSet negate()
+        {
+            CharSet set = new CharSet();
+            int from = Character.MIN_VALUE;
+            for (int i = 0; i < _ranges.length; i += 2)
+            {
+                if (_ranges[i] > from)
+                {
+                    set.add(from, _ranges[i] - 1);
+                }
+                from = _ranges[i + 1] + 1;
+            }
+            if (from <= Character.MAX_VALUE)
+            {
+                set.add(from, Character.MAX_VALUE);
+            }
+            return set;
+        }
+
+        private static int[] normalize(int[] ranges)
+        {
+            int count = ranges.length / 2;
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; i++)
+            {
+                sorted[i] = ((long) ranges[2 * i] << 32) | ranges[2 * i + 1];
+            }
+            Arrays.sort(sorted);
+
+            int[] merged = new int[ranges.length];
+            int size = 0;
+            for (long range : sorted)
+            {
+                int from = (int) (range >>> 32);
+                int to = (int) range;
+                if (size > 0 && from <= merged[size - 1] + 1)
+                {
+                    merged[size - 1] = Math.max(merged[size - 1], to);
+                }
+                else
+                {
+                    merged[size++] = from;
+                    merged[size++] = to;
+                }
+            }
+            return Arrays.copyOf(merged, size);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class UnsupportedPatternException extends Exception
+    {
+    }
+
+    /**
+     * A parsed pattern, built into states back to front, each part being
+     * given the state that follows it.
+     */
+    private static abstract class Node
+    {
+        abstract NfaState build(NfaState next, int[] budget) throws UnsupportedPatternException;
+
+        static NfaState count(NfaState state, int[] budget) throws UnsupportedPatternException
+        {
+            if (--budget[0] < 0)
+            {
+                throw new UnsupportedPatternException();
+            }
+            return state;
+        }
+    }
+
+    private static final class Chars extends Node
+    {
+        private final CharSet _chars;
+
+        Chars(CharSet chars)
+        {
+            _chars = chars;
+        }
+
+        @Override
+        NfaState build(NfaState next, int[] budget) throws UnsupportedPatternException
+        {
+            return count(new NfaState(_chars, next), budget);
+        }
+    }
+
+    private static final class Sequence extends Node
+    {
+        private final List<Node> _nodes = new ArrayList<Node>();
+
+        @Override
+        NfaState build(NfaState next, int[] budget) throws UnsupportedPatternException
+        {
+            for (int i = _nodes.size() - 1; i >= 0; i--)
+            {
+                next = _nodes.get(i).build(next, budget);
+            }
+            return next;
+        }
+    }
+
+    private static final class Alternation extends Node
+    {
+        private final List<Node> _nodes = new ArrayList<Node>();
+
+        @Override
+        NfaState build(NfaState next, int[] budget) throws UnsupportedPatternException
+        {
+            NfaState[] states = new NfaState[_nodes.size()];
+            for (int i = 0; i < states.length; i++)
+            {
+                states[i] = _nodes.get(i).build(next, budget);
+            }
+            return count(new NfaState(states), budget);
+        }
+    }
+
+    private static final class Repetition extends Node
+    {
+        static final int UNBOUNDED = -1;
+
+        private final Node _node;
+
+        private final int _min;
+
+        private final int _max;
+
+        Repetition(Node node, int min, int max)
+        {
+            _node = node;
+            _min = min;
+            _max = max;
+        }
+
+        @Override
+        NfaState build(NfaState next, int[] budget) throws UnsupportedPatternException
+        {
+            if (_max == UNBOUNDED)
+            {
+                NfaState loop = count(new NfaState(), budget);
+                loop._empty = new NfaState[] { _node.build(loop, budget), next };
+                next = loop;
+            }
+            else
+            {
+                for (int i = _min; i < _max; i++)
+                {
+                    next = count(new NfaState(_node.build(next, budget), next), budget);
+                }
+            }
+            for (int i = 0; i < _min; i++)
+            {
+                next = _node.build(next, budget);
+            }
+            return next;
+        }
+    }
+
+    private static final class Parser
+    {
+        private final String _regex;
+
+        private int _pos;
+
+        Parser(String regex)
+        {
+            _regex = regex;
+        }
+
+        Node parse() throws UnsupportedPatternException
+        {
+            // Anchors at either end make no difference to a whole key match
+            if (more() && peek() == '^')
+            {
+                _pos++;
+            }
+            Node node = alternation();
+            if (more())
+            {
+                throw new UnsupportedPatternException();
+            }
+            return node;
+        }
+
+        private Node alternation() throws UnsupportedPatternException
+        {
+            Alternation alternation = new Alternation();
+            alternation._nodes.add(sequence());
+            while (more() && peek() == '|')
+            {
+                _pos++;
+                alternation._nodes.add(sequence());
+            }
+            return alternation._nodes.size() == 1 ? alternation._nodes.get(0) : alternation;
+        }
+
+        private Node sequence() throws UnsupportedPatternException
+        {
+            Sequence sequence = new Sequence();
+            while (more() && peek() != '|' && peek() != ')')
+            {
+                if (peek() == '$' && _pos == _regex.length() - 1)
+                {
+                    _pos++;
+                    break;
+                }
+                sequence._nodes.add(quantified(atom()));
+            }
+            return sequence;
+        }
+
+        private Node quantified(Node atom) throws UnsupportedPatternException
+        {
+            if (!more())
+            {
+                return atom;
+            }
+
+            int min;
+            int max;
+            switch (peek())
+            {
+            case '*':
+                _pos++;
+                min = 0;
+                max = Repetition.UNBOUNDED;
+                break;
+            case '+':
+                _pos++;
+                min = 1;
+                max = Repetition.UNBOUNDED;
+                break;
+            case '?':
+                _pos++;
+                min = 0;
+                max = 1;
+                break;
+            case '{':
+                _pos++;
+                min = number();
+                max = min;
+                if (more() && peek() == ',')
+                {
+                    _pos++;
+                    max = more() && peek() == '}' ? Repetition.UNBOUNDED : number();
+                }
+                expect('}');
+                break;
+            default:
+                return atom;
+            }
+
+            // Reluctant quantifiers match the same keys as greedy ones when
+            // the whole key has to match, possessive ones do not.
+            if (more() && peek() == '?')
+            {
+                _pos++;
+            }
+            if (more() && "*+?{".indexOf(peek()) >= 0)
+            {
+                throw new UnsupportedPatternException();
+            }
+            return new Repetition(atom, min, max);
+        }
+
+        private Node atom() throws UnsupportedPatternException
+        {
+            char c = next();
+            switch (c)
+            {
+            case '(':
+                if (more() && peek() == '?')
+                {
+                    _pos++;
+                    expect(':');
+                }
+                Node node = alternation();
+                expect(')');
+                return node;
+            case '[':
+                return new Chars(charClass());
+            case '.':
+                return new Chars(CharSet.DOT);
+            case '\\':
+                return new Chars(escape());
+            case '^':
+            case '$':
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw new UnsupportedPatternException();
+            default:
+                return new Chars(new CharSet().add(c, c));
+            }
+        }
+
+        private CharSet charClass() throws UnsupportedPatternException
+        {
+            boolean negate = false;
+            if (more() && peek() == '^')
+            {
+                _pos++;
+                negate = true;
+            }
+            if (more() && peek() == ']')
+            {
+                throw new UnsupportedPatternException();
+            }
+
+            CharSet set = new CharSet();
+            while (true)
+            {
+                char c = next();
+                if (c == ']')
+                {
+                    break;
+                }
+                else if (c == '[' || (c == '&' && more() && peek() == '&'))
+                {
+                    // Unions and intersections
+                    throw new UnsupportedPatternException();
+                }
+
+                CharSet single;
+                if (c == '\\')
+                {
+                    single = escape();
+                }
+                else
+                {
+                    single = new CharSet().add(c, c);
+                }
+
+                if (more() && peek() == '-' && _pos + 1 < _regex.length() && _regex.charAt(_pos + 1) != ']')
+                {
+                    _pos++;
+                    char to = next();
+                    if (to == '\\')
+                    {
+                        to = single(escape());
+                    }
+                    else if (to == '[')
+                    {
+                        throw new UnsupportedPatternException();
+                    }
+                    set.add(single(single), to);
+                }
+                else
+                {
+                    set.add(single);
+                }
+            }
+            return negate ? set.negate() : set;
+        }
+
+        private CharSet escape() throws UnsupportedPatternException
+        {
+            char c = next();
+            switch (c)
+            {
+            case 'd':
+                return new CharSet().add(CharSet.DIGIT);
+            case 'D':
+                return CharSet.DIGIT.negate();
+            case 'w':
+                return new CharSet().add(CharSet.WORD);
+            case 'W':
+                return CharSet.WORD.negate();
+            case 's':
+                return new CharSet().add(CharSet.SPACE);
+            case 'S':
+                return CharSet.SPACE.negate();
+            case 't':
+                return new CharSet().add('\t', '\t');
+            case 'n':
+                return new CharSet().add('\n', '\n');
+            case 'r':
+                return new CharSet().add('\r', '\r');
+            case 'f':
+                return new CharSet().add('\f', '\f');
+            default:
+                if (Character.isLetterOrDigit(c))
+                {
+                    // Back references, boundaries, quoting, properties and
+                    // the numeric escapes
+                    throw new UnsupportedPatternException();
+                }
+                return new CharSet().add(c, c);
+            }
+        }
+
+        private static char single(CharSet set) throws UnsupportedPatternException
+        {
+            if (set._ranges.length != 2 || set._ranges[0] != set._ranges[1])
+            {
+                throw new UnsupportedPatternException();
+            }
+            return (char) set._ranges[0];
+        }
+
+        private int number() throws UnsupportedPatternException
+        {
+            int start = _pos;
+            while (more() && Character.isDigit(peek()) && _pos - start < 4)
+            {
+                _pos++;
+            }
+            if (start == _pos || (more() && Character.isDigit(peek())))
+            {
+                throw new UnsupportedPatternException();
+            }
+            return Integer.parseInt(_regex.substring(start, _pos));
+        }
+
+        private void expect(char c) throws UnsupportedPatternException
+        {
+            if (next() != c)
+            {
+                throw new UnsupportedPatternException();
+            }
+        }
+
+        private boolean more()
+        {
+            return _pos < _regex.length();
+        }
+
+        private char peek()
+        {
+            return _regex.charAt(_pos);
+        }
+
+        private char next() throws UnsupportedPatternException
+        {
+            if (!more())
+            {
+                throw new UnsupportedPatternException();
+            }
+            return _regex.charAt(_pos++);
+        }
+    }
+}
@@ -20,6 +20,8 @@
  */
 package org.splash.messaging.service.routing;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -39,6 +41,8 @@ public abstract class Router implements ManageableEntity
 
     static final String ALTERNATE_ADDRESS = "alt_address";
 
+    static final String PREFIX = "prefix";
+
     protected String _id;
 
     protected String _name;
@@ -51,8 +55,19 @@ public abstract class Router implements ManageableEntity
     @ManagementAttribute("altAddress")
     protected String _altAddress;
 
+    /**
+     * When set, the router receives the messages for any address that
+     * starts with its own, unless another router is bound to the address or
+     * a longer prefix of it.
+     */
+    @ManagementAttribute("prefix")
+    protected boolean _prefix;
+
     protected InboundLink _link;
 
+    // Returned when no route matches
+    protected volatile List<String> _altDests;
+
     public Router(String id, String name, Map<String, Object> args)
     {
         _id = id;
@@ -70,6 +85,11 @@ public abstract class Router implements ManageableEntity
         {
             _altAddress = (String) args.get(ALTERNATE_ADDRESS);
         }
+        _altDests = destinations(_altAddress);
+        if (args.containsKey(PREFIX))
+        {
+            _prefix = Boolean.parseBoolean(String.valueOf(args.get(PREFIX)));
+        }
         args.put(ManagementPropertyNames.NAME, name);
         args.put(ManagementPropertyNames.IDENTITY, id);
     }
@@ -84,6 +104,11 @@ public abstract class Router implements ManageableEntity
         return _altAddress;
     }
 
+    boolean isPrefix()
+    {
+        return _prefix;
+    }
+
     void setLink(InboundLink link)
     {
         _link = link;
@@ -94,14 +119,49 @@ public abstract class Router implements ManageableEntity
         return _link;
     }
 
+    /**
+     * Returns the destinations for the message. Routers return lists that
+     * are computed when the routes change and shared between messages, so
+     * the list must not be modified. A message for which the list is empty
+     * is sent to the dead letter address of the node.
+     */
     public abstract List<String> route(Message msg);
 
+    /**
+     * Routes the messages from index from up to, but not including, to,
+     * setting the destinations of each in the array at the same index as
+     * the message, as returned by {@link #route(Message)}. The array is
+     * reused by the caller from one batch to the next.
+     */
+    public void route(List<Message> msgs, int from, int to, List<String>[] destinations)
+    {
+        for (int i = from; i < to; i++)
+        {
+            destinations[i] = route(msgs.get(i));
+        }
+    }
+
     public abstract void addRoute(Route route);
 
     public abstract void updateRoute(Route route);
 
     public abstract void removeRoute(Route route);
 
+    static List<String> destinations(String dest)
+    {
+        return dest == null ? Collections.<String> emptyList() : Collections.singletonList(dest);
+    }
+
+    static List<String> destinations(List<? extends Route> routes)
+    {
+        String[] dests = new String[routes.size()];
+        for (int i = 0; i < dests.length; i++)
+        {
+            dests[i] = routes.get(i).getDestination();
+        }
+        return Collections.unmodifiableList(Arrays.asList(dests));
+    }
+
     // ----------- Management ---------------
     @Override
     public String getName()
@@ -128,6 +188,7 @@ public abstract class Router implements ManageableEntity
         {
             _args.put(ALTERNATE_ADDRESS, attributes.get(ALTERNATE_ADDRESS));
             _altAddress = (String) attributes.get(ALTERNATE_ADDRESS);
+            _altDests = destinations(_altAddress);
         }
         return _args;
     }
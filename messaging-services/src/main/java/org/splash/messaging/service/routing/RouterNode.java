@@ -20,19 +20,29 @@
  */
 package org.splash.messaging.service.routing;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.splash.logging.Logger;
 import org.splash.messaging.AbstractEventHandler;
+import org.splash.messaging.BatchEventHandler;
 import org.splash.messaging.Connection;
 import org.splash.messaging.ConnectionSettings;
 import org.splash.messaging.CreditMode;
 import org.splash.messaging.InboundLink;
 import org.splash.messaging.InboundLinkMode;
 import org.splash.messaging.Message;
+import org.splash.messaging.MessageDisposition;
 import org.splash.messaging.Messaging;
 import org.splash.messaging.MessagingException;
 import org.splash.messaging.NetworkException;
@@ -47,10 +57,55 @@ import org.splash.messaging.service.management.ManageableEntityFactory;
 import org.splash.messaging.service.management.ManageableEntityLifecycleHandler;
 import org.splash.messaging.service.management.ManagementNode;
 
-public class RouterNode extends AbstractEventHandler implements ManageableEntityLifecycleHandler
+/**
+ * Routes messages received on the address of each router to the
+ * destinations the router selects. The routers can be spread over several
+ * connections by address, so that messages for different routers are
+ * received, routed and sent on different threads. The management node is
+ * always on the first connection.
+ *
+ * A router created with prefix set also receives the messages for every
+ * address that starts with its own, so that one router and its link can
+ * stand in for many. A router bound to the exact address of a message, or
+ * failing that to the longest prefix of it, is the one that routes it, see
+ * {@link AddressIndex}.
+ *
+ * The messages received on a link in one read from the network are routed
+ * together, see {@link Router#route(List, int, int, List[])}.
+ *
+ * A link route (see {@link LinkRoute}) instead relays the messages received
+ * on its address to a fixed destination as they are, with the credit of
+ * the destination passed back to the sender, so they cost no routing.
+ *
+ * Routed messages are sent on a single link per connection, unless
+ * router.link_per_destination is set. Each destination then gets a link of
+ * its own, with its own credit, which is created when it is first routed to
+ * and closed again once it has been idle for router.link_idle_timeout ms.
+ * As each link sends when its destination has credit, the copies of a
+ * message are then not encoded together as they are on a single link. Only
+ * the sections the node touches are encoded again for each destination,
+ * the others are still copied as they were received.
+ *
+ * A received message is settled once every copy of it has been settled by
+ * its destination, see {@link SettlementWindow}.
+ */
+public class RouterNode extends AbstractEventHandler implements BatchEventHandler,
+        ManageableEntityLifecycleHandler
 {
     private static final Logger _logger = Logger.get(RouterNode.class);
 
+    static final boolean LINK_PER_DESTINATION = Boolean.getBoolean("router.link_per_destination");
+
+    static final long LINK_IDLE_TIMEOUT = Long.getLong("router.link_idle_timeout", 60000);
+
+    // Messages held for a destination without credit before further ones are
+    // sent to the DLQ
+    static final int DESTINATION_BACKLOG = Integer.getInteger("router.destination_backlog", 10000);
+
+    // Completed messages held for an earlier one before they are settled on
+    // their own
+    static final int SETTLEMENT_WINDOW = Integer.getInteger("router.settlement_window", 10000);
+
     private Connection _conn;
 
     private String _routerMgtAddress;
@@ -69,19 +124,52 @@ public class RouterNode extends AbstractEventHandler implements ManageableEntity
 
     private ManagementNode _mgtNode;
 
-    final private Map<String, Router> _routersByAddress = new HashMap<String, Router>();
+    private final ConnectionSettings _settings;
+
+    private final Shard[] _shards;
+
+    // Evicts idle destination links and attaches link routes again
+    private ScheduledExecutorService _timer;
+
+    // Kept for the destinations of the routers that balance on them
+    private final DestinationLoad.Registry _loads = new DestinationLoad.Registry();
+
+    // Reused by each thread for the batches of messages it routes
+    private static final ThreadLocal<RoutingBatch> _batches = new ThreadLocal<RoutingBatch>()
+    {
+        @Override
+        protected RoutingBatch initialValue()
+        {
+            return new RoutingBatch();
+        }
+    };
 
-    final private Map<String, Router> _routersById = new HashMap<String, Router>();
+    // Read by every shard as messages arrive
+    final private AddressIndex _routersByAddress = new AddressIndex();
+
+    final private Map<String, Router> _routersById = new ConcurrentHashMap<String, Router>();
 
     RouterNode(ConnectionSettings settings, String mgtAddress, String dlqAddress, int capacity)
             throws NetworkException, MessagingException
+    {
+        this(settings, mgtAddress, dlqAddress, capacity, 1);
+    }
+
+    RouterNode(ConnectionSettings settings, String mgtAddress, String dlqAddress, int capacity, int shards)
+            throws NetworkException, MessagingException
     {
         super();
+        if (shards < 1)
+        {
+            throw new IllegalArgumentException("A router node needs at least one shard");
+        }
+        _settings = settings;
         _conn = Messaging.connect(settings, this);
         _routerMgtAddress = mgtAddress;
         _DLQAddress = dlqAddress;
         _capacity = capacity;
         _id = Router.class.getSimpleName() + "-" + UUID.randomUUID().toString();
+        _shards = new Shard[shards];
         setup();
     }
 
@@ -94,13 +182,59 @@ public class RouterNode extends AbstractEventHandler implements ManageableEntity
         _mgtNode = ManagementNode.Factory.create();
         _mgtNode.init(_mgtLink, _outLink, this);
 
+        // The first shard shares the management connection, the others have
+        // a connection of their own.
+        _shards[0] = new Shard(0, _ssn, _outLink);
+        for (int i = 1; i < _shards.length; i++)
+        {
+            Shard shard = new Shard(i);
+            shard.connect(_settings);
+            _shards[i] = shard;
+        }
+
+        _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "splash-router-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (LINK_PER_DESTINATION)
+        {
+            _timer.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (Shard shard : _shards)
+                    {
+                        shard.evictIdleLinks();
+                    }
+                }
+            }, LINK_IDLE_TIMEOUT / 2, LINK_IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        }
+
         // Registering standard routers
         registerRouterType(DirectMatchRouter.class, DirectMatchRouter.Factory.get());
         registerRouterType(WildcardRouter.class, WildcardRouter.Factory.get());
+        registerRouterType(TopicRouter.class, TopicRouter.Factory.get());
+        registerRouterType(HeadersRouter.class, HeadersRouter.Factory.get());
+        registerRouterType(SelectorRouter.class, SelectorRouter.Factory.get());
+        registerRouterType(ConsistentHashRouter.class, ConsistentHashRouter.Factory.get());
+        registerRouterType(LeastOutstandingRouter.class, LeastOutstandingRouter.Factory.get());
+        _mgtNode.registerType(LinkRoute.class, LinkRoute.Factory.get());
 
         // Registering standard route types
         registerRouteType(DirectMatchRoute.class, DirectMatchRoute.Factory.get());
         registerRouteType(WildcardRoute.class, WildcardRoute.Factory.get());
+        registerRouteType(TopicRoute.class, TopicRoute.Factory.get());
+        registerRouteType(HeadersRoute.class, HeadersRoute.Factory.get());
+        registerRouteType(SelectorRoute.class, SelectorRoute.Factory.get());
+        registerRouteType(ConsistentHashRoute.class, ConsistentHashRoute.Factory.get());
+        registerRouteType(LeastOutstandingRoute.class, LeastOutstandingRoute.Factory.get());
     }
 
     public void registerRouterType(Class<? extends Router> router, ManageableEntityFactory factory)
@@ -118,19 +252,8 @@ public class RouterNode extends AbstractEventHandler implements ManageableEntity
     @Override
     public void onSettled(Tracker tracker)
     {
-        /*Message msg = (Message) tracker.get("INBOUND_MSG");
-        try
-        {
-            _ssn.settle(msg);
-        }
-        catch (NetworkException e)
-        {
-            _logger.warn(e, "Network error when settling message");
-        }
-        catch (MessagingException e)
-        {
-            _logger.warn(e, "Exception when settling message");
-        }*/
+        InboundDelivery.settled(tracker);
+        DestinationLoad.settled(tracker);
     }
 
     @Override
@@ -138,65 +261,52 @@ public class RouterNode extends AbstractEventHandler implements ManageableEntity
     {
         if (link.equals(_mgtLink))
         {
-            _mgtNode.onMessage(link, msg);
-        }
-        else
-        {
-            if (_routersByAddress.containsKey(msg.getAddress()))
+            try
             {
-                List<String> addrList = _routersByAddress.get(msg.getAddress()).route(msg);
-                msg.getMessageAnnotations().remove("x-opt-qd.trace");
-                for (String addr : addrList)
-                {
-                    send(addr, msg);
-                }
+                _mgtNode.onMessage(link, msg);
             }
-            else
+            finally
             {
-                send(_DLQAddress, msg);
+                _shards[0].settlements().completed((InboundMessage) msg, MessageDisposition.ACCEPTED);
             }
         }
+        else
+        {
+            _shards[0].onMessage(link, msg);
+        }
     }
 
-    void send(String address, Message msg)
+    @Override
+    public void onMessages(InboundLink link, List<Message> msgs)
     {
-        msg.setAddress(address);
-        boolean preSettled = ((InboundMessage) msg).isPreSettled();
-        try
+        if (link.equals(_mgtLink))
         {
-            Tracker tracker = _outLink.send(msg);
-            if (!preSettled)
+            for (Message msg : msgs)
             {
-                tracker.put("INBOUND_MSG", msg);
+                onMessage(link, msg);
             }
-
-        }
-        catch (NetworkException e)
-        {
-            // TODO handle network exception and retry the delivery
-            _logger.warn(e, "Network error when sending message for %s", address);
         }
-        catch (MessagingException e)
+        else
         {
-            _logger.warn(e, "Exception when sending message for %s", address);
+            _shards[0].onMessages(link, msgs);
         }
     }
 
-    // Sets up a link with the router network for receiving messages
-    InboundLink createLink(String address)
+    @Override
+    public void onOutboundLinkCredit(OutboundLink link, int credits)
     {
-        InboundLink rcv = null;
-        try
-        {
-            rcv = _ssn.createInboundLink(address, InboundLinkMode.AT_LEAST_ONCE, CreditMode.AUTO);
-            rcv.setCredits(_capacity);
-        }
-        catch (Exception e)
-        {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        return rcv;
+        _shards[0].onOutboundLinkCredit(link, credits);
+    }
+
+    @Override
+    public void onOutboundLinkClosed(OutboundLink link)
+    {
+        _shards[0].onOutboundLinkClosed(link);
+    }
+
+    Shard shardFor(String address)
+    {
+        return _shards[(address.hashCode() & Integer.MAX_VALUE) % _shards.length];
     }
 
     @Override
@@ -205,11 +315,35 @@ public class RouterNode extends AbstractEventHandler implements ManageableEntity
         if (entity instanceof Router)
         {
             Router router = (Router) entity;
-            router.setLink(createLink(router.getAddress()));
-            _routersByAddress.put(router.getAddress(), router);
+            if (router instanceof LeastOutstandingRouter)
+            {
+                ((LeastOutstandingRouter) router).setLoads(_loads);
+            }
+            try
+            {
+                router.setLink(shardFor(router.getAddress()).createLink(router.getAddress()));
+            }
+            catch (MessagingException e)
+            {
+                throw new IllegalStateException("Could not create the link for router " + router, e);
+            }
+            _routersByAddress.put(router.getAddress(), router.isPrefix(), router);
             _routersById.put(router.getID(), router);
             _logger.info("Added new router %s", router);
         }
+        else if (entity instanceof LinkRoute)
+        {
+            LinkRoute linkRoute = (LinkRoute) entity;
+            try
+            {
+                shardFor(linkRoute.getAddress()).attach(linkRoute);
+            }
+            catch (MessagingException e)
+            {
+                throw new IllegalStateException("Could not attach the link route " + linkRoute, e);
+            }
+            _logger.info("Added new link route %s", linkRoute);
+        }
         else
         {
             Route route = (Route) entity;
@@ -231,9 +365,20 @@ public class RouterNode extends AbstractEventHandler implements ManageableEntity
     {
         if (entity instanceof Router)
         {
-            _routersByAddress.remove(((Router) entity).getAddress());
+            _routersByAddress.remove(((Router) entity).getAddress(), (Router) entity);
+            if (entity instanceof LeastOutstandingRouter)
+            {
+                // Releases the loads it has registered with the node
+                ((LeastOutstandingRouter) entity).setLoads(new DestinationLoad.Registry());
+            }
             // TODO remove all routes associated with this router
         }
+        else if (entity instanceof LinkRoute)
+        {
+            LinkRoute linkRoute = (LinkRoute) entity;
+            shardFor(linkRoute.getAddress()).cancelReattach(linkRoute);
+            _logger.info("Removed link route %s", linkRoute);
+        }
     }
 
     @SuppressWarnings("unused")
@@ -244,11 +389,499 @@ public class RouterNode extends AbstractEventHandler implements ManageableEntity
         String routerMgtAddress = System.getProperty("router.mgt_address", "SPLASH_ROUTER_NODE");
         String routerDlqAddress = System.getProperty("router.dlq_address", "SPLASH_DLQ");
         int capacity = Integer.getInteger("router.capacity", 5000);
+        int shards = Integer.getInteger("router.shards", 1);
 
         ConnectionSettings settings = new ConnectionSettings();
         settings.setHost(host);
         settings.setPort(port);
 
-        RouterNode node = new RouterNode(settings, routerMgtAddress, routerDlqAddress, capacity);
+        RouterNode node = new RouterNode(settings, routerMgtAddress, routerDlqAddress, capacity, shards);
+    }
+
+    /**
+     * A connection, with a session and an outbound link, that receives and
+     * routes the messages for the routers whose address hashes to it.
+     */
+    class Shard extends AbstractEventHandler implements BatchEventHandler
+    {
+        private final int _index;
+
+        private Connection _shardConn;
+
+        private Session _shardSsn;
+
+        private OutboundLink _shardOutLink;
+
+        private SettlementWindow _settlements;
+
+        private final ConcurrentMap<String, DestinationLink> _destinations = new ConcurrentHashMap<String, DestinationLink>();
+
+        // The link routes waiting to be attached again
+        private final ConcurrentMap<LinkRoute, ScheduledFuture<?>> _reattaching = new ConcurrentHashMap<LinkRoute, ScheduledFuture<?>>();
+
+        Shard(int index)
+        {
+            _index = index;
+        }
+
+        Shard(int index, Session ssn, OutboundLink outLink)
+        {
+            _index = index;
+            _shardSsn = ssn;
+            _shardOutLink = outLink;
+            _settlements = new SettlementWindow(ssn, SETTLEMENT_WINDOW);
+        }
+
+        void connect(ConnectionSettings settings) throws MessagingException
+        {
+            _shardConn = Messaging.connect(settings, this);
+            _shardSsn = _shardConn.createSession();
+            _settlements = new SettlementWindow(_shardSsn, SETTLEMENT_WINDOW);
+            _shardOutLink = _shardSsn.createOutboundLink(_id + "-" + _index, OutboundLinkMode.AT_LEAST_ONCE);
+        }
+
+        SettlementWindow settlements()
+        {
+            return _settlements;
+        }
+
+        @Override
+        public void onMessage(InboundLink link, Message msg)
+        {
+            InboundDelivery delivery = new InboundDelivery((InboundMessage) msg, _settlements);
+            try
+            {
+                LinkRoute linkRoute = (LinkRoute) link.get(LinkRoute.CONTEXT_KEY);
+                if (linkRoute != null)
+                {
+                    linkRoute.forward(delivery);
+                    return;
+                }
+                Router router = _routersByAddress.get(msg.getAddress());
+                if (router != null)
+                {
+                    forward(router.route(msg), delivery);
+                }
+                else
+                {
+                    send(_DLQAddress, delivery);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                _logger.warn(e, "Error when routing message for %s", msg.getAddress());
+                delivery.update(MessageDisposition.RELEASED);
+            }
+            finally
+            {
+                delivery.release();
+            }
+        }
+
+        /**
+         * Looks up the router for each message, only doing so again when the
+         * address differs from that of the message before, and then routes
+         * each run of messages with the same router as one batch. Messages
+         * for link routes, and single messages, go through onMessage.
+         */
+        @Override
+        public void onMessages(InboundLink link, List<Message> msgs)
+        {
+            int count = msgs.size();
+            if (count == 1 || link.get(LinkRoute.CONTEXT_KEY) != null)
+            {
+                for (Message msg : msgs)
+                {
+                    onMessage(link, msg);
+                }
+                return;
+            }
+
+            RoutingBatch batch = _batches.get();
+            batch.ensureCapacity(count);
+            Router[] routers = batch._routers;
+            List<String>[] destinations = batch._destinations;
+            try
+            {
+                String lastAddress = null;
+                Router router = null;
+                for (int i = 0; i < count; i++)
+                {
+                    String address = msgs.get(i).getAddress();
+                    if (i == 0 || !(address == null ? lastAddress == null : address.equals(lastAddress)))
+                    {
+                        router = _routersByAddress.get(address);
+                        lastAddress = address;
+                    }
+                    routers[i] = router;
+                }
+
+                int end;
+                for (int start = 0; start < count; start = end)
+                {
+                    end = start + 1;
+                    while (end < count && routers[end] == routers[start])
+                    {
+                        end++;
+                    }
+                    if (routers[start] != null)
+                    {
+                        try
+                        {
+                            routers[start].route(msgs, start, end, destinations);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            // Each is routed again on its own below, so that
+                            // only the failing messages are released
+                            _logger.debug("Error when routing a batch for %s: %s", routers[start].getAddress(), e);
+                            Arrays.fill(destinations, start, end, null);
+                        }
+                    }
+                }
+
+                for (int i = 0; i < count; i++)
+                {
+                    Message msg = msgs.get(i);
+                    InboundDelivery delivery = new InboundDelivery((InboundMessage) msg, _settlements);
+                    try
+                    {
+                        if (routers[i] == null)
+                        {
+                            send(_DLQAddress, delivery);
+                        }
+                        else
+                        {
+                            forward(destinations[i] != null ? destinations[i] : routers[i].route(msg), delivery);
+                        }
+                    }
+                    catch (RuntimeException e)
+                    {
+                        _logger.warn(e, "Error when routing message for %s", msg.getAddress());
+                        delivery.update(MessageDisposition.RELEASED);
+                    }
+                    finally
+                    {
+                        delivery.release();
+                    }
+                }
+            }
+            finally
+            {
+                Arrays.fill(routers, 0, count, null);
+                Arrays.fill(destinations, 0, count, null);
+            }
+        }
+
+        void forward(List<String> addrList, InboundDelivery delivery)
+        {
+            // Only the properties and message annotations are touched here,
+            // the remaining sections are forwarded as they were received.
+            delivery.getMessage().removeMessageAnnotation("x-opt-qd.trace");
+            if (addrList == null || addrList.isEmpty())
+            {
+                // Matched no route and the router has no alternate address,
+                // so the message is kept rather than accepted and dropped
+                send(_DLQAddress, delivery);
+            }
+            else if (LINK_PER_DESTINATION)
+            {
+                // Sent by each link as credit allows, so the copies are
+                // encoded one by one rather than together
+                for (String addr : addrList)
+                {
+                    sendToDestination(addr, delivery);
+                }
+            }
+            else if (addrList.size() == 1)
+            {
+                send(addrList.get(0), delivery);
+            }
+            else if (addrList.size() > 1)
+            {
+                send(addrList, delivery);
+            }
+        }
+
+        @Override
+        public void onSettled(Tracker tracker)
+        {
+            InboundDelivery.settled(tracker);
+            DestinationLoad.settled(tracker);
+        }
+
+        void send(String address, InboundDelivery delivery)
+        {
+            Message msg = delivery.getMessage();
+            msg.setAddress(address);
+            try
+            {
+                Tracker tracker = _shardOutLink.send(msg);
+                delivery.track(tracker);
+                DestinationLoad load = _loads.get(address);
+                if (load != null)
+                {
+                    load.sent(tracker);
+                }
+            }
+            catch (NetworkException e)
+            {
+                // Released rather than retried here, so that the peer
+                // delivers it again
+                _logger.warn(e, "Network error when sending message for %s", address);
+                delivery.update(MessageDisposition.RELEASED);
+            }
+            catch (MessagingException e)
+            {
+                _logger.warn(e, "Exception when sending message for %s", address);
+                delivery.update(MessageDisposition.RELEASED);
+            }
+        }
+
+        // Encodes the message once for all the addresses, with only the
+        // properties encoded again for each
+        void send(List<String> addresses, InboundDelivery delivery)
+        {
+            try
+            {
+                List<Tracker> trackers = _shardOutLink.send(delivery.getMessage(), addresses);
+                for (int i = 0; i < trackers.size(); i++)
+                {
+                    delivery.track(trackers.get(i));
+                    DestinationLoad load = _loads.get(addresses.get(i));
+                    if (load != null)
+                    {
+                        load.sent(trackers.get(i));
+                    }
+                }
+            }
+            catch (NetworkException e)
+            {
+                _logger.warn(e, "Network error when sending message for %s", addresses);
+                delivery.update(MessageDisposition.RELEASED);
+            }
+            catch (MessagingException e)
+            {
+                _logger.warn(e, "Exception when sending message for %s", addresses);
+                delivery.update(MessageDisposition.RELEASED);
+            }
+        }
+
+        void sendToDestination(String address, InboundDelivery delivery)
+        {
+            try
+            {
+                while (true)
+                {
+                    switch (destination(address).send(delivery))
+                    {
+                    case FULL:
+                        _logger.warn("Backlog for %s is full, sending message to %s", address, _DLQAddress);
+                        sendToDLQ(delivery);
+                        return;
+                    case CLOSED:
+                        // Evicted since it was looked up
+                        continue;
+                    default:
+                        return;
+                    }
+                }
+            }
+            catch (MessagingException e)
+            {
+                _logger.warn(e, "Exception when sending message for %s", address);
+                delivery.update(MessageDisposition.RELEASED);
+            }
+        }
+
+        // The message may still be queued for other destinations, whose links
+        // set its address and send it under its lock on other threads
+        void sendToDLQ(InboundDelivery delivery)
+        {
+            synchronized (delivery.getMessage())
+            {
+                send(_DLQAddress, delivery);
+            }
+        }
+
+        DestinationLink destination(String address) throws MessagingException
+        {
+            DestinationLink link = _destinations.get(address);
+            if (link == null)
+            {
+                synchronized (_destinations)
+                {
+                    link = _destinations.get(address);
+                    if (link == null)
+                    {
+                        link = new DestinationLink(address, _shardSsn.createOutboundLink(address,
+                                OutboundLinkMode.AT_LEAST_ONCE), DESTINATION_BACKLOG, _loads);
+                        _destinations.put(address, link);
+                    }
+                }
+            }
+            return link;
+        }
+
+        @Override
+        public void onOutboundLinkCredit(OutboundLink link, int credits)
+        {
+            LinkRoute linkRoute = (LinkRoute) link.get(LinkRoute.CONTEXT_KEY);
+            if (linkRoute != null)
+            {
+                try
+                {
+                    linkRoute.setCredit(link, credits);
+                }
+                catch (MessagingException e)
+                {
+                    _logger.warn(e, "Exception when issuing credit for %s", linkRoute.getAddress());
+                }
+                return;
+            }
+            DestinationLink destination = (DestinationLink) link.get(DestinationLink.CONTEXT_KEY);
+            if (destination != null)
+            {
+                try
+                {
+                    destination.creditGranted();
+                }
+                catch (MessagingException e)
+                {
+                    _logger.warn(e, "Exception when sending message for %s", destination.getAddress());
+                }
+            }
+        }
+
+        @Override
+        public void onOutboundLinkClosed(OutboundLink link)
+        {
+            LinkRoute linkRoute = (LinkRoute) link.get(LinkRoute.CONTEXT_KEY);
+            if (linkRoute != null)
+            {
+                if (linkRoute.detach(link))
+                {
+                    _logger.warn("Link to %s closed, attaching the link route for %s again in %s ms",
+                            linkRoute.getDestination(), linkRoute.getAddress(), linkRoute.getBackoff());
+                    reattach(linkRoute);
+                }
+                return;
+            }
+            DestinationLink destination = (DestinationLink) link.get(DestinationLink.CONTEXT_KEY);
+            if (destination != null && _destinations.remove(destination.getAddress(), destination))
+            {
+                Queue<InboundDelivery> unsent = destination.close();
+                if (!unsent.isEmpty())
+                {
+                    _logger.warn("Link for %s closed, sending %s messages to %s", destination.getAddress(),
+                            unsent.size(), _DLQAddress);
+                }
+                for (InboundDelivery delivery : unsent)
+                {
+                    sendToDLQ(delivery);
+                    delivery.release();
+                }
+            }
+        }
+
+        void evictIdleLinks()
+        {
+            for (DestinationLink link : _destinations.values())
+            {
+                if (link.closeIfIdle(LINK_IDLE_TIMEOUT))
+                {
+                    _destinations.remove(link.getAddress(), link);
+                    _logger.debug("Closed idle link for %s", link.getAddress());
+                }
+            }
+        }
+
+        // Sets up the links of a link route, with no credit issued to the
+        // sender until the destination grants some
+        void attach(LinkRoute linkRoute) throws MessagingException
+        {
+            InboundLink rcv = null;
+            try
+            {
+                rcv = _shardSsn.createInboundLink(linkRoute.getAddress(), InboundLinkMode.AT_LEAST_ONCE,
+                        CreditMode.EXPLICT);
+                OutboundLink snd = _shardSsn.createOutboundLink(linkRoute.getDestination(),
+                        OutboundLinkMode.AT_LEAST_ONCE);
+                if (!linkRoute.setLinks(rcv, snd))
+                {
+                    // Deleted while being attached again
+                    rcv.close();
+                    snd.close();
+                }
+            }
+            catch (MessagingException e)
+            {
+                _logger.warn(e, "Exception when attaching the link route for %s", linkRoute.getAddress());
+                if (rcv != null)
+                {
+                    try
+                    {
+                        rcv.close();
+                    }
+                    catch (MessagingException ex)
+                    {
+                        _logger.warn(ex, "Error closing the link for address %s", linkRoute.getAddress());
+                    }
+                }
+                throw e;
+            }
+        }
+
+        // Attaches the link route again once its backoff has passed, and
+        // again after a longer one for as long as that fails
+        void reattach(final LinkRoute linkRoute)
+        {
+            ScheduledFuture<?> future = _timer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _reattaching.remove(linkRoute);
+                    if (linkRoute.isDeleted())
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        attach(linkRoute);
+                    }
+                    catch (MessagingException e)
+                    {
+                        reattach(linkRoute);
+                    }
+                }
+            }, linkRoute.getBackoff(), TimeUnit.MILLISECONDS);
+            _reattaching.put(linkRoute, future);
+        }
+
+        void cancelReattach(LinkRoute linkRoute)
+        {
+            ScheduledFuture<?> future = _reattaching.remove(linkRoute);
+            if (future != null)
+            {
+                future.cancel(false);
+            }
+        }
+
+        // Sets up a link with the router network for receiving messages
+        InboundLink createLink(String address) throws MessagingException
+        {
+            try
+            {
+                InboundLink rcv = _shardSsn.createInboundLink(address, InboundLinkMode.AT_LEAST_ONCE, CreditMode.AUTO);
+                rcv.setCredits(_capacity);
+                return rcv;
+            }
+            catch (MessagingException e)
+            {
+                _logger.warn(e, "Exception when creating the link for %s", address);
+                throw e;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.List;
+
+/**
+ * The router and destinations of each message of a batch, kept by each
+ * thread and reused from one batch to the next. The arrays only grow.
+ */
+class RoutingBatch
+{
+    Router[] _routers = new Router[0];
+
+    List<String>[] _destinations = newDestinations(0);
+
+    void ensureCapacity(int count)
+    {
+        if (_routers.length < count)
+        {
+            _routers = new Router[count];
+            _destinations = newDestinations(count);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String>[] newDestinations(int count)
+    {
+        return (List<String>[]) new List<?>[count];
+    }
+}
@@ -0,0 +1,1325 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.splash.messaging.Message;
+
+/**
+ * Compiles SQL-92 style selectors, as in JMS, into trees of nodes that
+ * evaluate themselves against a message. For example
+ *
+ * <pre>
+ * priority &gt; 4 AND region IN ('eu', 'us')
+ * </pre>
+ *
+ * The selector supports AND, OR and NOT with three valued logic, the
+ * comparisons =, &lt;&gt;, &lt;, &lt;=, &gt; and &gt;=, the arithmetic
+ * operators +, -, * and /, [NOT] BETWEEN, [NOT] IN, [NOT] LIKE with ESCAPE,
+ * and IS [NOT] NULL, over string, integer, floating point and boolean
+ * literals. Identifiers name application properties, except for those
+ * naming a field of the header or properties section, see {@link #FIELDS}.
+ *
+ * Nodes hand their value to their parent in the registers of a
+ * {@link Context} held per thread rather than as objects, so that
+ * evaluating a selector does not allocate. Each node has a canonical key, so
+ * that the nodes of different selectors that are equal can be shared, and
+ * shared nodes remember their value for the message being evaluated in the
+ * slot they are given.
+ */
+final class Selector
+{
+    // The types of value a node evaluates to
+    static final int NULL = 0;
+
+    static final int BOOLEAN = 1;
+
+    static final int LONG = 2;
+
+    static final int DOUBLE = 3;
+
+    static final int STRING = 4;
+
+    static final int OTHER = 5;
+
+    /**
+     * The identifiers that name a field of the message rather than an
+     * application property.
+     */
+    static final List<String> FIELDS = Arrays.asList("durable", "priority", "ttl", "first_acquirer",
+            "delivery_count", "message_id", "user_id", "to", "subject", "reply_to", "correlation_id",
+            "content_type", "content_encoding", "absolute_expiry_time", "creation_time", "group_id",
+            "group_sequence", "reply_to_group_id");
+
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("NOT", "AND", "OR", "BETWEEN",
+            "LIKE", "IN", "IS", "NULL", "TRUE", "FALSE", "ESCAPE"));
+
+    private static final ThreadLocal<Context> _contexts = new ThreadLocal<Context>()
+    {
+        @Override
+        protected Context initialValue()
+        {
+            return new Context();
+        }
+    };
+
+    private Selector()
+    {
+    }
+
+    /**
+     * Parses the selector, throwing IllegalArgumentException if it is not
+     * valid.
+     */
+    static Node parse(String selector) throws IllegalArgumentException
+    {
+        return new Parser(selector).parse();
+    }
+
+    /**
+     * Returns the context of the thread, set up to evaluate selectors against
+     * the message until {@link Context#end()} is called.
+     */
+    static Context context(Message msg)
+    {
+        Context ctx = _contexts.get();
+        ctx._msg = msg;
+        if (++ctx._generation == 0)
+        {
+            Arrays.fill(ctx._stamps, 0);
+            ctx._generation = 1;
+        }
+        return ctx;
+    }
+
+    /**
+     * The message being evaluated, the registers nodes return their value
+     * in, and the values remembered by the shared nodes for the message.
+     */
+    static final class Context
+    {
+        Message _msg;
+
+        long _long;
+
+        double _double;
+
+        Object _object;
+
+        // Slots whose stamp is the current generation hold a value for the
+        // current message, computed by the node recorded as their owner. A
+        // router may give a slot to another node while a message is being
+        // evaluated, which must not take the value of the previous one.
+        private int _generation = 0;
+
+        private int[] _stamps = new int[16];
+
+        private Node[] _owners = new Node[16];
+
+        private int[] _types = new int[16];
+
+        private long[] _longs = new long[16];
+
+        private double[] _doubles = new double[16];
+
+        private Object[] _objects = new Object[16];
+
+        void end()
+        {
+            _msg = null;
+            _object = null;
+        }
+
+        int bool(boolean value)
+        {
+            _long = value ? 1 : 0;
+            return BOOLEAN;
+        }
+
+        int value(Object value)
+        {
+            if (value == null)
+            {
+                return NULL;
+            }
+            else if (value instanceof String)
+            {
+                _object = value;
+                return STRING;
+            }
+            else if (value instanceof Double || value instanceof Float)
+            {
+                _double = ((Number) value).doubleValue();
+                return DOUBLE;
+            }
+            else if (value instanceof Number)
+            {
+                _long = ((Number) value).longValue();
+                return LONG;
+            }
+            else if (value instanceof Boolean)
+            {
+                return bool((Boolean) value);
+            }
+            else if (value instanceof CharSequence)
+            {
+                _object = value.toString();
+                return STRING;
+            }
+            _object = value;
+            return OTHER;
+        }
+
+        private void grow(int slots)
+        {
+            int length = Math.max(slots, _stamps.length * 2);
+            _stamps = Arrays.copyOf(_stamps, length);
+            _owners = Arrays.copyOf(_owners, length);
+            _types = Arrays.copyOf(_types, length);
+            _longs = Arrays.copyOf(_longs, length);
+            _doubles = Arrays.copyOf(_doubles, length);
+            _objects = Arrays.copyOf(_objects, length);
+        }
+    }
+
+    abstract static class Node
+    {
+        final Node[] _children;
+
+        // The slot the value is remembered in for the message being
+        // evaluated, if the node is shared. Both are set by the router
+        // holding the node, under its lock.
+        volatile int _slot = -1;
+
+        int _references = 0;
+
+        private String _key;
+
+        Node(Node... children)
+        {
+            _children = children;
+        }
+
+        /**
+         * Evaluates the node, or returns the value it has already been
+         * evaluated to for the message, leaving it in the registers of the
+         * context and returning its type.
+         */
+        final int value(Context ctx)
+        {
+            int slot = _slot;
+            if (slot < 0)
+            {
+                return evaluate(ctx);
+            }
+            if (slot >= ctx._stamps.length)
+            {
+                ctx.grow(slot + 1);
+            }
+            if (ctx._stamps[slot] == ctx._generation && ctx._owners[slot] == this)
+            {
+                ctx._long = ctx._longs[slot];
+                ctx._double = ctx._doubles[slot];
+                ctx._object = ctx._objects[slot];
+                return ctx._types[slot];
+            }
+            int type = evaluate(ctx);
+            ctx._stamps[slot] = ctx._generation;
+            ctx._owners[slot] = this;
+            ctx._types[slot] = type;
+            ctx._longs[slot] = ctx._long;
+            ctx._doubles[slot] = ctx._double;
+            ctx._objects[slot] = ctx._object;
+            return type;
+        }
+
+        final boolean matches(Context ctx)
+        {
+            return value(ctx) == BOOLEAN && ctx._long != 0;
+        }
+
+        abstract int evaluate(Context ctx);
+
+        /**
+         * The selector text for the node, which is the same for equal nodes.
+         */
+        abstract String describe();
+
+        final String key()
+        {
+            if (_key == null)
+            {
+                _key = describe();
+            }
+            return _key;
+        }
+
+        @Override
+        public String toString()
+        {
+            return key();
+        }
+    }
+
+    static final class Literal extends Node
+    {
+        final int _type;
+
+        final long _long;
+
+        final double _double;
+
+        final Object _object;
+
+        Literal(int type, long longValue, double doubleValue, Object objectValue)
+        {
+            _type = type;
+            _long = longValue;
+            _double = doubleValue;
+            _object = objectValue;
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            ctx._long = _long;
+            ctx._double = _double;
+            ctx._object = _object;
+            return _type;
+        }
+
+        @Override
+        String describe()
+        {
+            switch (_type)
+            {
+            case BOOLEAN:
+                return _long != 0 ? "TRUE" : "FALSE";
+            case LONG:
+                return Long.toString(_long);
+            case DOUBLE:
+                return Double.toString(_double);
+            default:
+                return "'" + ((String) _object).replace("'", "''") + "'";
+            }
+        }
+    }
+
+    static final class Property extends Node
+    {
+        final String _name;
+
+        Property(String name)
+        {
+            _name = name;
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            Map<?, ?> properties = ctx._msg.getApplicationProperties();
+            return properties == null ? NULL : ctx.value(properties.get(_name));
+        }
+
+        @Override
+        String describe()
+        {
+            return _name;
+        }
+    }
+
+    static final class Field extends Node
+    {
+        final int _field;
+
+        Field(int field)
+        {
+            _field = field;
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            Message msg = ctx._msg;
+            switch (_field)
+            {
+            case 0:
+                return ctx.bool(msg.isDurable());
+            case 1:
+                ctx._long = msg.getPriority();
+                return LONG;
+            case 2:
+                ctx._long = msg.getTtl();
+                return LONG;
+            case 3:
+                return ctx.bool(msg.isFirstAcquirer());
+            case 4:
+                ctx._long = msg.getDeliveryCount();
+                return LONG;
+            case 5:
+                return ctx.value(msg.getMessageId());
+            case 6:
+                return ctx.value(msg.getUserId());
+            case 7:
+                return ctx.value(msg.getAddress());
+            case 8:
+                return ctx.value(msg.getSubject());
+            case 9:
+                return ctx.value(msg.getReplyTo());
+            case 10:
+                return ctx.value(msg.getCorrelationId());
+            case 11:
+                return ctx.value(msg.getContentType());
+            case 12:
+                return ctx.value(msg.getContentEncoding());
+            case 13:
+                ctx._long = msg.getExpiryTime();
+                return LONG;
+            case 14:
+                ctx._long = msg.getCreationTime();
+                return LONG;
+            case 15:
+                return ctx.value(msg.getGroupId());
+            case 16:
+                ctx._long = msg.getGroupSequence();
+                return LONG;
+            default:
+                return ctx.value(msg.getReplyToGroupId());
+            }
+        }
+
+        @Override
+        String describe()
+        {
+            return FIELDS.get(_field);
+        }
+    }
+
+    static final class Not extends Node
+    {
+        Not(Node operand)
+        {
+            super(operand);
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            if (_children[0].value(ctx) != BOOLEAN)
+            {
+                return NULL;
+            }
+            return ctx.bool(ctx._long == 0);
+        }
+
+        @Override
+        String describe()
+        {
+            return "(NOT " + _children[0].key() + ")";
+        }
+    }
+
+    static final class And extends Node
+    {
+        And(Node left, Node right)
+        {
+            super(left, right);
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            int left = _children[0].value(ctx);
+            if (left == BOOLEAN && ctx._long == 0)
+            {
+                return BOOLEAN;
+            }
+            int right = _children[1].value(ctx);
+            if (right == BOOLEAN && ctx._long == 0)
+            {
+                return BOOLEAN;
+            }
+            return left == BOOLEAN && right == BOOLEAN ? ctx.bool(true) : NULL;
+        }
+
+        @Override
+        String describe()
+        {
+            return "(" + _children[0].key() + " AND " + _children[1].key() + ")";
+        }
+    }
+
+    static final class Or extends Node
+    {
+        Or(Node left, Node right)
+        {
+            super(left, right);
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            int left = _children[0].value(ctx);
+            if (left == BOOLEAN && ctx._long != 0)
+            {
+                return BOOLEAN;
+            }
+            int right = _children[1].value(ctx);
+            if (right == BOOLEAN && ctx._long != 0)
+            {
+                return BOOLEAN;
+            }
+            return left == BOOLEAN && right == BOOLEAN ? ctx.bool(false) : NULL;
+        }
+
+        @Override
+        String describe()
+        {
+            return "(" + _children[0].key() + " OR " + _children[1].key() + ")";
+        }
+    }
+
+    static final class Comparison extends Node
+    {
+        final String _operator;
+
+        Comparison(String operator, Node left, Node right)
+        {
+            super(left, right);
+            _operator = operator;
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            int left = _children[0].value(ctx);
+            long leftLong = ctx._long;
+            double leftDouble = ctx._double;
+            Object leftObject = ctx._object;
+            int right = _children[1].value(ctx);
+            return compare(ctx, _operator, left, leftLong, leftDouble, leftObject, right);
+        }
+
+        @Override
+        String describe()
+        {
+            return "(" + _children[0].key() + " " + _operator + " " + _children[1].key() + ")";
+        }
+    }
+
+    /**
+     * Compares the left value with the one in the registers. Values that are
+     * not both numbers can only be compared for equality, and values of
+     * different types are never equal.
+     */
+    static int compare(Context ctx, String operator, int left, long leftLong, double leftDouble, Object leftObject,
+            int right)
+    {
+        if (left == NULL || right == NULL)
+        {
+            return NULL;
+        }
+        int comparison;
+        if ((left == LONG || left == DOUBLE) && (right == LONG || right == DOUBLE))
+        {
+            if (left == LONG && right == LONG)
+            {
+                comparison = leftLong < ctx._long ? -1 : (leftLong == ctx._long ? 0 : 1);
+            }
+            else
+            {
+                double l = left == LONG ? leftLong : leftDouble;
+                double r = right == LONG ? ctx._long : ctx._double;
+                comparison = l < r ? -1 : (l == r ? 0 : 1);
+            }
+        }
+        else
+        {
+            boolean equal = left == right && (left == BOOLEAN ? leftLong == ctx._long : leftObject.equals(ctx._object));
+            if ("=".equals(operator))
+            {
+                return ctx.bool(equal);
+            }
+            else if ("<>".equals(operator))
+            {
+                return ctx.bool(!equal && left == right);
+            }
+            return ctx.bool(false);
+        }
+
+        switch (operator.charAt(0))
+        {
+        case '=':
+            return ctx.bool(comparison == 0);
+        case '>':
+            return ctx.bool(operator.length() == 1 ? comparison > 0 : comparison >= 0);
+        default:
+            if (operator.length() == 1)
+            {
+                return ctx.bool(comparison < 0);
+            }
+            return ctx.bool(operator.charAt(1) == '>' ? comparison != 0 : comparison <= 0);
+        }
+    }
+
+    static final class Arithmetic extends Node
+    {
+        final char _operator;
+
+        Arithmetic(char operator, Node left, Node right)
+        {
+            super(left, right);
+            _operator = operator;
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            int left = _children[0].value(ctx);
+            long leftLong = ctx._long;
+            double leftDouble = ctx._double;
+            if (left != LONG && left != DOUBLE)
+            {
+                return NULL;
+            }
+            int right = _children[1].value(ctx);
+            if (right != LONG && right != DOUBLE)
+            {
+                return NULL;
+            }
+            if (left == LONG && right == LONG)
+            {
+                long r = ctx._long;
+                switch (_operator)
+                {
+                case '+':
+                    ctx._long = leftLong + r;
+                    return LONG;
+                case '-':
+                    ctx._long = leftLong - r;
+                    return LONG;
+                case '*':
+                    ctx._long = leftLong * r;
+                    return LONG;
+                default:
+                    if (r == 0)
+                    {
+                        return NULL;
+                    }
+                    ctx._long = leftLong / r;
+                    return LONG;
+                }
+            }
+            double l = left == LONG ? leftLong : leftDouble;
+            double r = right == LONG ? ctx._long : ctx._double;
+            switch (_operator)
+            {
+            case '+':
+                ctx._double = l + r;
+                break;
+            case '-':
+                ctx._double = l - r;
+                break;
+            case '*':
+                ctx._double = l * r;
+                break;
+            default:
+                ctx._double = l / r;
+                break;
+            }
+            return DOUBLE;
+        }
+
+        @Override
+        String describe()
+        {
+            return "(" + _children[0].key() + " " + _operator + " " + _children[1].key() + ")";
+        }
+    }
+
+    static final class Negate extends Node
+    {
+        Negate(Node operand)
+        {
+            super(operand);
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            int type = _children[0].value(ctx);
+            if (type == LONG)
+            {
+                ctx._long = -ctx._long;
+            }
+            else if (type == DOUBLE)
+            {
+                ctx._double = -ctx._double;
+            }
+            else
+            {
+                return NULL;
+            }
+            return type;
+        }
+
+        @Override
+        String describe()
+        {
+            return "(-" + _children[0].key() + ")";
+        }
+    }
+
+    static final class Between extends Node
+    {
+        final boolean _not;
+
+        Between(Node value, Node low, Node high, boolean not)
+        {
+            super(value, low, high);
+            _not = not;
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            int type = _children[0].value(ctx);
+            long valueLong = ctx._long;
+            double valueDouble = ctx._double;
+            Object valueObject = ctx._object;
+            int low = compare(ctx, ">=", type, valueLong, valueDouble, valueObject, _children[1].value(ctx));
+            boolean aboveLow = ctx._long != 0;
+            int high = compare(ctx, "<=", type, valueLong, valueDouble, valueObject, _children[2].value(ctx));
+            boolean belowHigh = ctx._long != 0;
+            if ((low == BOOLEAN && !aboveLow) || (high == BOOLEAN && !belowHigh))
+            {
+                return ctx.bool(_not);
+            }
+            return low == BOOLEAN && high == BOOLEAN ? ctx.bool(!_not) : NULL;
+        }
+
+        @Override
+        String describe()
+        {
+            return "(" + _children[0].key() + (_not ? " NOT" : "") + " BETWEEN " + _children[1].key() + " AND "
+                    + _children[2].key() + ")";
+        }
+    }
+
+    static final class In extends Node
+    {
+        final List<Literal> _literals;
+
+        final Set<String> _strings = new HashSet<String>();
+
+        final long[] _longs;
+
+        final double[] _doubles;
+
+        final boolean _not;
+
+        In(Node value, List<Literal> literals, boolean not)
+        {
+            super(value);
+            _literals = literals;
+            _not = not;
+            int longs = 0;
+            int doubles = 0;
+            for (Literal literal : literals)
+            {
+                if (literal._type == LONG)
+                {
+                    longs++;
+                }
+                else if (literal._type == DOUBLE)
+                {
+                    doubles++;
+                }
+            }
+            _longs = new long[longs];
+            _doubles = new double[doubles];
+            longs = 0;
+            doubles = 0;
+            for (Literal literal : literals)
+            {
+                if (literal._type == STRING)
+                {
+                    _strings.add((String) literal._object);
+                }
+                else if (literal._type == LONG)
+                {
+                    _longs[longs++] = literal._long;
+                }
+                else if (literal._type == DOUBLE)
+                {
+                    _doubles[doubles++] = literal._double;
+                }
+            }
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            int type = _children[0].value(ctx);
+            if (type == NULL)
+            {
+                return NULL;
+            }
+            boolean found = false;
+            if (type == STRING)
+            {
+                found = _strings.contains(ctx._object);
+            }
+            else if (type == LONG || type == DOUBLE)
+            {
+                found = contains(type, ctx._long, ctx._double);
+            }
+            return ctx.bool(found != _not);
+        }
+
+        private boolean contains(int type, long longValue, double doubleValue)
+        {
+            double value = type == LONG ? longValue : doubleValue;
+            for (long l : _longs)
+            {
+                if (type == LONG ? l == longValue : l == value)
+                {
+                    return true;
+                }
+            }
+            for (double d : _doubles)
+            {
+                if (d == value)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        String describe()
+        {
+            StringBuilder b = new StringBuilder("(").append(_children[0].key()).append(_not ? " NOT IN (" : " IN (");
+            for (int i = 0; i < _literals.size(); i++)
+            {
+                b.append(i == 0 ? "" : ", ").append(_literals.get(i).key());
+            }
+            return b.append("))").toString();
+        }
+    }
+
+    static final class Like extends Node
+    {
+        private static final byte CHAR = 0;
+
+        private static final byte ONE = 1;
+
+        private static final byte ANY = 2;
+
+        final String _pattern;
+
+        final String _escape;
+
+        final boolean _not;
+
+        private final char[] _chars;
+
+        private final byte[] _kinds;
+
+        Like(Node value, String pattern, String escape, boolean not)
+        {
+            super(value);
+            _pattern = pattern;
+            _escape = escape;
+            _not = not;
+            if (escape != null && escape.length() != 1)
+            {
+                throw new IllegalArgumentException("ESCAPE should be a single character: " + escape);
+            }
+            char[] chars = new char[pattern.length()];
+            byte[] kinds = new byte[pattern.length()];
+            int length = 0;
+            for (int i = 0; i < pattern.length(); i++)
+            {
+                char c = pattern.charAt(i);
+                if (escape != null && c == escape.charAt(0))
+                {
+                    if (++i == pattern.length())
+                    {
+                        throw new IllegalArgumentException("LIKE pattern ends with the escape character: " + pattern);
+                    }
+                    chars[length] = pattern.charAt(i);
+                    kinds[length++] = CHAR;
+                }
+                else
+                {
+                    chars[length] = c;
+                    kinds[length++] = c == '%' ? ANY : (c == '_' ? ONE : CHAR);
+                }
+            }
+            _chars = Arrays.copyOf(chars, length);
+            _kinds = Arrays.copyOf(kinds, length);
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            if (_children[0].value(ctx) != STRING)
+            {
+                return NULL;
+            }
+            return ctx.bool(matches((String) ctx._object) != _not);
+        }
+
+        // Backtracks to the last '%' on a mismatch
+        private boolean matches(String s)
+        {
+            int si = 0;
+            int pi = 0;
+            int any = -1;
+            int mark = 0;
+            while (si < s.length())
+            {
+                if (pi < _chars.length && (_kinds[pi] == ONE || (_kinds[pi] == CHAR && _chars[pi] == s.charAt(si))))
+                {
+                    si++;
+                    pi++;
+                }
+                else if (pi < _chars.length && _kinds[pi] == ANY)
+                {
+                    any = pi++;
+                    mark = si;
+                }
+                else if (any >= 0)
+                {
+                    pi = any + 1;
+                    si = ++mark;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+            while (pi < _chars.length && _kinds[pi] == ANY)
+            {
+                pi++;
+            }
+            return pi == _chars.length;
+        }
+
+        @Override
+        String describe()
+        {
+            return "(" + _children[0].key() + (_not ? " NOT LIKE '" : " LIKE '") + _pattern.replace("'", "''") + "'"
+                    + (_escape == null ? "" : " ESCAPE '" + _escape.replace("'", "''") + "'") + ")";
+        }
+    }
+
+    static final class IsNull extends Node
+    {
+        final boolean _not;
+
+        IsNull(Node value, boolean not)
+        {
+            super(value);
+            _not = not;
+        }
+
+        @Override
+        int evaluate(Context ctx)
+        {
+            return ctx.bool((_children[0].value(ctx) == NULL) != _not);
+        }
+
+        @Override
+        String describe()
+        {
+            return "(" + _children[0].key() + (_not ? " IS NOT NULL)" : " IS NULL)");
+        }
+    }
+
+    /**
+     * A recursive descent parser, with the usual precedence: OR, AND, NOT,
+     * the comparisons, addition and subtraction, multiplication and
+     * division, and unary minus.
+     */
+    private static final class Parser
+    {
+        private final String _text;
+
+        private int _pos = 0;
+
+        Parser(String text)
+        {
+            _text = text;
+        }
+
+        Node parse()
+        {
+            Node node = or();
+            skipSpace();
+            if (_pos < _text.length())
+            {
+                throw error("Unexpected input");
+            }
+            return node;
+        }
+
+        private Node or()
+        {
+            Node node = and();
+            while (keyword("OR"))
+            {
+                node = ordered(node, and(), true);
+            }
+            return node;
+        }
+
+        private Node and()
+        {
+            Node node = not();
+            while (keyword("AND"))
+            {
+                node = ordered(node, not(), false);
+            }
+            return node;
+        }
+
+        // Orders the operands of AND and OR by key, so that the same
+        // conditions written in a different order are shared
+        private Node ordered(Node left, Node right, boolean or)
+        {
+            if (left.key().compareTo(right.key()) > 0)
+            {
+                Node swap = left;
+                left = right;
+                right = swap;
+            }
+            return or ? new Or(left, right) : new And(left, right);
+        }
+
+        private Node not()
+        {
+            if (keyword("NOT"))
+            {
+                return new Not(not());
+            }
+            return predicate();
+        }
+
+        private Node predicate()
+        {
+            Node value = sum();
+            String operator = symbol("<>", "<=", ">=", "=", "<", ">");
+            if (operator != null)
+            {
+                return new Comparison(operator, value, sum());
+            }
+            if (keyword("IS"))
+            {
+                boolean not = keyword("NOT");
+                expectKeyword("NULL");
+                return new IsNull(value, not);
+            }
+            int start = _pos;
+            boolean not = keyword("NOT");
+            if (keyword("BETWEEN"))
+            {
+                Node low = sum();
+                expectKeyword("AND");
+                return new Between(value, low, sum(), not);
+            }
+            else if (keyword("IN"))
+            {
+                expectSymbol("(");
+                List<Literal> literals = new ArrayList<Literal>();
+                do
+                {
+                    literals.add(literal());
+                }
+                while (symbol(",") != null);
+                expectSymbol(")");
+                return new In(value, literals, not);
+            }
+            else if (keyword("LIKE"))
+            {
+                String pattern = string();
+                String escape = keyword("ESCAPE") ? string() : null;
+                return new Like(value, pattern, escape, not);
+            }
+            else if (not)
+            {
+                _pos = start;
+            }
+            return value;
+        }
+
+        private Node sum()
+        {
+            Node node = product();
+            String operator;
+            while ((operator = symbol("+", "-")) != null)
+            {
+                node = new Arithmetic(operator.charAt(0), node, product());
+            }
+            return node;
+        }
+
+        private Node product()
+        {
+            Node node = unary();
+            String operator;
+            while ((operator = symbol("*", "/")) != null)
+            {
+                node = new Arithmetic(operator.charAt(0), node, unary());
+            }
+            return node;
+        }
+
+        private Node unary()
+        {
+            if (symbol("-") != null)
+            {
+                Node operand = unary();
+                if (operand instanceof Literal && ((Literal) operand)._type == LONG)
+                {
+                    return new Literal(LONG, -((Literal) operand)._long, 0, null);
+                }
+                else if (operand instanceof Literal && ((Literal) operand)._type == DOUBLE)
+                {
+                    return new Literal(DOUBLE, 0, -((Literal) operand)._double, null);
+                }
+                return new Negate(operand);
+            }
+            else if (symbol("+") != null)
+            {
+                return unary();
+            }
+            return primary();
+        }
+
+        private Node primary()
+        {
+            skipSpace();
+            if (symbol("(") != null)
+            {
+                Node node = or();
+                expectSymbol(")");
+                return node;
+            }
+            if (_pos < _text.length() && Character.isJavaIdentifierStart(_text.charAt(_pos)))
+            {
+                int start = _pos;
+                String word = word();
+                String upper = word.toUpperCase();
+                if ("TRUE".equals(upper) || "FALSE".equals(upper))
+                {
+                    return new Literal(BOOLEAN, "TRUE".equals(upper) ? 1 : 0, 0, null);
+                }
+                else if (KEYWORDS.contains(upper))
+                {
+                    _pos = start;
+                    throw error("Unexpected keyword " + word);
+                }
+                int field = FIELDS.indexOf(word);
+                return field < 0 ? new Property(word) : new Field(field);
+            }
+            return literal();
+        }
+
+        private Literal literal()
+        {
+            skipSpace();
+            if (_pos >= _text.length())
+            {
+                throw error("Unexpected end of selector");
+            }
+            char c = _text.charAt(_pos);
+            if (c == '\'')
+            {
+                return new Literal(STRING, 0, 0, string());
+            }
+            else if (Character.isDigit(c) || c == '.' || c == '-')
+            {
+                return number();
+            }
+            else if (keyword("TRUE"))
+            {
+                return new Literal(BOOLEAN, 1, 0, null);
+            }
+            else if (keyword("FALSE"))
+            {
+                return new Literal(BOOLEAN, 0, 0, null);
+            }
+            throw error("Expected a literal");
+        }
+
+        private Literal number()
+        {
+            int start = _pos;
+            if (_text.charAt(_pos) == '-')
+            {
+                _pos++;
+            }
+            boolean decimal = false;
+            while (_pos < _text.length())
+            {
+                char c = _text.charAt(_pos);
+                if (c == '.' || c == 'e' || c == 'E')
+                {
+                    decimal = true;
+                }
+                else if ((c == '+' || c == '-') && (_text.charAt(_pos - 1) == 'e' || _text.charAt(_pos - 1) == 'E'))
+                {
+                    // The sign of an exponent
+                }
+                else if (!Character.isDigit(c))
+                {
+                    break;
+                }
+                _pos++;
+            }
+            String number = _text.substring(start, _pos);
+            try
+            {
+                if (decimal)
+                {
+                    return new Literal(DOUBLE, 0, Double.parseDouble(number), null);
+                }
+                if (_pos < _text.length() && (_text.charAt(_pos) == 'L' || _text.charAt(_pos) == 'l'))
+                {
+                    _pos++;
+                }
+                return new Literal(LONG, Long.parseLong(number), 0, null);
+            }
+            catch (NumberFormatException e)
+            {
+                _pos = start;
+                throw error("Invalid number " + number);
+            }
+        }
+
+        private String string()
+        {
+            skipSpace();
+            if (_pos >= _text.length() || _text.charAt(_pos) != '\'')
+            {
+                throw error("Expected a string");
+            }
+            StringBuilder b = new StringBuilder();
+            _pos++;
+            while (true)
+            {
+                if (_pos >= _text.length())
+                {
+                    throw error("Unterminated string");
+                }
+                char c = _text.charAt(_pos++);
+                if (c == '\'')
+                {
+                    if (_pos < _text.length() && _text.charAt(_pos) == '\'')
+                    {
+                        _pos++;
+                    }
+                    else
+                    {
+                        return b.toString();
+                    }
+                }
+                b.append(c);
+            }
+        }
+
+        private String word()
+        {
+            int start = _pos;
+            while (_pos < _text.length() && Character.isJavaIdentifierPart(_text.charAt(_pos)))
+            {
+                _pos++;
+            }
+            return _text.substring(start, _pos);
+        }
+
+        private boolean keyword(String keyword)
+        {
+            skipSpace();
+            int end = _pos + keyword.length();
+            if (_text.regionMatches(true, _pos, keyword, 0, keyword.length())
+                    && (end == _text.length() || !Character.isJavaIdentifierPart(_text.charAt(end))))
+            {
+                _pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectKeyword(String keyword)
+        {
+            if (!keyword(keyword))
+            {
+                throw error("Expected " + keyword);
+            }
+        }
+
+        private String symbol(String... symbols)
+        {
+            skipSpace();
+            for (String symbol : symbols)
+            {
+                if (_text.startsWith(symbol, _pos))
+                {
+                    _pos += symbol.length();
+                    return symbol;
+                }
+            }
+            return null;
+        }
+
+        private void expectSymbol(String symbol)
+        {
+            if (symbol(symbol) == null)
+            {
+                throw error("Expected " + symbol);
+            }
+        }
+
+        private void skipSpace()
+        {
+            while (_pos < _text.length() && Character.isWhitespace(_text.charAt(_pos)))
+            {
+                _pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message + " at position " + _pos + " in selector: " + _text);
+        }
+    }
+}
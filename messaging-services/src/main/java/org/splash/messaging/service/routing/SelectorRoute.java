@@ -0,0 +1,115 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.Map;
+
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+import org.splash.messaging.service.management.ManagementAttribute;
+
+/**
+ * A route for messages matching an SQL-92 style selector over the fields and
+ * application properties of the message, see {@link Selector}. The selector
+ * is compiled when the route is created or updated.
+ */
+@ManageableEntityType("org.splash.SelectorRoute")
+public class SelectorRoute extends Route
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new SelectorRoute(id, name, args);
+        }
+    }
+
+    static final String SELECTOR = "selector";
+
+    @ManagementAttribute("selector")
+    protected String _selector;
+
+    protected Selector.Node _compiled;
+
+    public SelectorRoute(String id, String name, Map<String, Object> args) throws IllegalArgumentException
+    {
+        super(id, name, args);
+        if (args.containsKey(SELECTOR))
+        {
+            _compiled = Selector.parse((String) args.get(SELECTOR));
+            _args.put(SELECTOR, args.get(SELECTOR));
+            _selector = (String) args.get(SELECTOR);
+        }
+        else
+        {
+            throw new IllegalArgumentException("selector not specified");
+        }
+    }
+
+    String getSelector()
+    {
+        return _selector;
+    }
+
+    Selector.Node getCompiled()
+    {
+        return _compiled;
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        // The router shares the compiled nodes between its routes, so you
+        // need to remove the old entry and add the updated entry
+        if (attributes.containsKey(SELECTOR))
+        {
+            Selector.Node compiled = Selector.parse((String) attributes.get(SELECTOR));
+            _router.removeRoute(this);
+            _args.put(SELECTOR, attributes.get(SELECTOR));
+            _selector = (String) attributes.get(SELECTOR);
+            _compiled = compiled;
+            _router.addRoute(this);
+        }
+        super.update(attributes);
+        return _args;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[selector=%s, destination=%s]", _selector, _dest);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.splash.messaging.Message;
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+
+/**
+ * Routes on SQL-92 style selectors, see {@link SelectorRoute}.
+ *
+ * The compiled selectors of the routes share their equal sub-expressions,
+ * which are held in a map keyed by their canonical text and counted by the
+ * routes that use them. A sub-expression shared by several routes is only
+ * evaluated once per message, as it remembers its value in a slot of the
+ * evaluation context for the message.
+ *
+ * The routes are published as an immutable table that is replaced whenever
+ * they change, so messages are routed without holding the router's lock.
+ */
+@ManageableEntityType("org.splash.SelectorRouter")
+public class SelectorRouter extends Router
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new SelectorRouter(id, name, args);
+        }
+    }
+
+    // The compiled selector of each route, as shared with the others
+    protected final Map<SelectorRoute, Selector.Node> _routes = new LinkedHashMap<SelectorRoute, Selector.Node>();
+
+    protected final Map<String, Selector.Node> _nodes = new HashMap<String, Selector.Node>();
+
+    // Slots released by the nodes no longer used, to be given to new ones.
+    // The context keeps the node a value was remembered for along with it,
+    // so a message still being evaluated against the previous table does not
+    // read the value of the previous node as that of the new one.
+    private final List<Integer> _freeSlots = new ArrayList<Integer>();
+
+    private int _slots = 0;
+
+    protected volatile Table _table;
+
+    SelectorRouter(String id, String name, Map<String, Object> args)
+    {
+        super(id, name, args);
+        _table = new Table(_routes, _altDests);
+    }
+
+    @Override
+    public List<String> route(Message msg)
+    {
+        return _table.match(msg);
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public synchronized void addRoute(Route route)
+    {
+        SelectorRoute selectorRoute = (SelectorRoute) route;
+        if (!_routes.containsKey(selectorRoute))
+        {
+            _routes.put(selectorRoute, intern(selectorRoute.getCompiled()));
+            publish();
+        }
+    }
+
+    @Override
+    public synchronized void updateRoute(Route route)
+    {
+        // The destination has changed
+        publish();
+    }
+
+    @Override
+    public synchronized void removeRoute(Route route)
+    {
+        Selector.Node node = _routes.remove(route);
+        if (node != null)
+        {
+            release(node);
+            publish();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
+    {
+        super.update(attributes);
+        // The alternate address may have changed
+        publish();
+        return _args;
+    }
+
+    // Returns the node equal to the given one that is already in use, or
+    // the given one, once its operands have been replaced by those in use.
+    private Selector.Node intern(Selector.Node node)
+    {
+        Selector.Node existing = _nodes.get(node.key());
+        if (existing != null)
+        {
+            // Only a shared node is worth remembering the value of
+            if (++existing._references == 2 && !(existing instanceof Selector.Literal))
+            {
+                existing._slot = _freeSlots.isEmpty() ? _slots++ : _freeSlots.remove(_freeSlots.size() - 1);
+            }
+            return existing;
+        }
+        for (int i = 0; i < node._children.length; i++)
+        {
+            node._children[i] = intern(node._children[i]);
+        }
+        node._references = 1;
+        _nodes.put(node.key(), node);
+        return node;
+    }
+
+    private void release(Selector.Node node)
+    {
+        if (--node._references <= 1 && node._slot >= 0)
+        {
+            _freeSlots.add(node._slot);
+            node._slot = -1;
+        }
+        if (node._references == 0)
+        {
+            _nodes.remove(node.key());
+            for (Selector.Node child : node._children)
+            {
+                release(child);
+            }
+        }
+    }
+
+    private void publish()
+    {
+        _table = new Table(_routes, _altDests);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[name=%s, address=%s, alt-address=%s, type=%s]", _name, _address, _altAddress, getType());
+    }
+
+    /**
+     * An immutable snapshot of the routes, holding the compiled selector and
+     * the destinations of each.
+     */
+    static class Table
+    {
+        final Selector.Node[] _selectors;
+
+        final List<List<String>> _dests = new ArrayList<List<String>>();
+
+        final List<String> _altDests;
+
+        Table(Map<SelectorRoute, Selector.Node> routes, List<String> altDests)
+        {
+            _selectors = routes.values().toArray(new Selector.Node[routes.size()]);
+            _altDests = altDests;
+            for (SelectorRoute route : routes.keySet())
+            {
+                _dests.add(destinations(route.getDestination()));
+            }
+        }
+
+        List<String> match(Message msg)
+        {
+            Scratch scratch = _scratch.get();
+            BitSet matched = scratch._matched;
+            matched.clear();
+            int first = -1;
+            int count = 0;
+            Selector.Context ctx = Selector.context(msg);
+            try
+            {
+                for (int i = 0; i < _selectors.length; i++)
+                {
+                    if (_selectors[i].matches(ctx))
+                    {
+                        matched.set(i);
+                        if (first < 0)
+                        {
+                            first = i;
+                        }
+                        count++;
+                    }
+                }
+            }
+            finally
+            {
+                ctx.end();
+            }
+            if (count == 0)
+            {
+                return _altDests;
+            }
+            else if (count == 1)
+            {
+                return _dests.get(first);
+            }
+            return scratch.merged(this, matched);
+        }
+
+        // The destinations of the matched routes, each once
+        List<String> merge(BitSet matched)
+        {
+            Set<String> merged = new LinkedHashSet<String>();
+            for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1))
+            {
+                merged.addAll(_dests.get(i));
+            }
+            return Collections.unmodifiableList(new ArrayList<String>(merged));
+        }
+    }
+
+    // Reused by each thread for the messages it routes
+    private static final ThreadLocal<Scratch> _scratch = new ThreadLocal<Scratch>()
+    {
+        @Override
+        protected Scratch initialValue()
+        {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * The routes matched by the message being routed, cleared for each
+     * message. The destinations merged from several routes are kept for the
+     * most recent sets of routes, as the same ones tend to match again, and
+     * are only reused for the table they were merged from.
+     */
+    private static final class Scratch
+    {
+        private static final int MERGE_CACHE_SIZE = 16;
+
+        private final BitSet _matched = new BitSet();
+
+        private final Merge[] _merges = new Merge[MERGE_CACHE_SIZE];
+
+        private int _hand;
+
+        List<String> merged(Table table, BitSet matched)
+        {
+            for (Merge merge : _merges)
+            {
+                if (merge != null && merge._table == table && merge._matched.equals(matched))
+                {
+                    return merge._dests;
+                }
+            }
+            Merge merge = new Merge(table, (BitSet) matched.clone(), table.merge(matched));
+            _merges[_hand] = merge;
+            _hand = (_hand + 1) % MERGE_CACHE_SIZE;
+            return merge._dests;
+        }
+    }
+
+    private static final class Merge
+    {
+        private final Table _table;
+
+        private final BitSet _matched;
+
+        private final List<String> _dests;
+
+        Merge(Table table, BitSet matched, List<String> dests)
+        {
+            _table = table;
+            _matched = matched;
+            _dests = dests;
+        }
+    }
+}
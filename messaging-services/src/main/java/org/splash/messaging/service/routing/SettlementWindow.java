@@ -0,0 +1,154 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.splash.logging.Logger;
+import org.splash.messaging.MessageDisposition;
+import org.splash.messaging.MessagingException;
+import org.splash.messaging.Session;
+import org.splash.messaging.proton.InboundMessage;
+
+/**
+ * Settles the messages received on a session once they have been routed and
+ * settled by their destinations.
+ *
+ * Messages complete out of order, as their copies are settled on different
+ * links. The accepted ones are held until every message received before them
+ * has completed too, and the run is then accepted and settled with a single
+ * {@link Session#CUMULATIVE} disposition for its last message. Rejected and
+ * released messages are settled on their own right away.
+ *
+ * Should a message hold up more than the given number of completed ones,
+ * those are settled on their own as well, so that a message which is never
+ * settled downstream does not keep the rest unsettled. The window then
+ * moves past the messages still outstanding, and only remembers their
+ * sequences. Each is settled on its own once it completes, and the
+ * messages completing in the meantime are too, as a cumulative disposition
+ * would also accept an outstanding one received before them.
+ */
+class SettlementWindow
+{
+    private static final Logger _logger = Logger.get(SettlementWindow.class);
+
+    // Stands in for a completed message with nothing left to settle
+    private static final Object SETTLED = new Object();
+
+    private final Session _ssn;
+
+    private final int _maxCompleted;
+
+    // Completed messages, by sequence, waiting for an earlier one
+    private final TreeMap<Long, Object> _completed = new TreeMap<Long, Object>();
+
+    // Messages the window has moved past before they completed
+    private final Set<Long> _outstanding = new HashSet<Long>();
+
+    // Sequence of the first message that has not completed
+    private long _next = 1;
+
+    SettlementWindow(Session ssn, int maxCompleted)
+    {
+        _ssn = ssn;
+        _maxCompleted = maxCompleted;
+    }
+
+    synchronized void completed(InboundMessage msg, MessageDisposition outcome)
+    {
+        long sequence = msg.getSequence();
+        if (sequence < _next)
+        {
+            // Moved past before it completed
+            if (_outstanding.remove(sequence) && !msg.isPreSettled())
+            {
+                disposition(msg, outcome, Session.SETTLE);
+            }
+            return;
+        }
+
+        if (msg.isPreSettled())
+        {
+            _completed.put(sequence, SETTLED);
+        }
+        else if (outcome != MessageDisposition.ACCEPTED || !_outstanding.isEmpty())
+        {
+            disposition(msg, outcome, Session.SETTLE);
+            _completed.put(sequence, SETTLED);
+        }
+        else
+        {
+            _completed.put(sequence, msg);
+        }
+
+        InboundMessage last = null;
+        Object entry;
+        while ((entry = _completed.remove(_next)) != null)
+        {
+            if (entry != SETTLED)
+            {
+                last = (InboundMessage) entry;
+            }
+            _next++;
+        }
+        if (last != null)
+        {
+            disposition(last, MessageDisposition.ACCEPTED, Session.CUMULATIVE | Session.SETTLE);
+        }
+
+        if (_completed.size() > _maxCompleted)
+        {
+            long end = _completed.lastKey();
+            _logger.warn("Message %s has not been settled, settling %s later messages on their own", _next,
+                    _completed.size());
+            for (long outstanding = _next; outstanding < end; outstanding++)
+            {
+                if (!_completed.containsKey(outstanding))
+                {
+                    _outstanding.add(outstanding);
+                }
+            }
+            for (Object completed : _completed.values())
+            {
+                if (completed != SETTLED)
+                {
+                    disposition((InboundMessage) completed, MessageDisposition.ACCEPTED, Session.SETTLE);
+                }
+            }
+            _completed.clear();
+            _next = end + 1;
+        }
+    }
+
+    private void disposition(InboundMessage msg, MessageDisposition outcome, int flags)
+    {
+        try
+        {
+            _ssn.disposition(msg, outcome, flags);
+        }
+        catch (MessagingException e)
+        {
+            _logger.warn(e, "Exception when settling message %s", msg.getSequence());
+        }
+    }
+}
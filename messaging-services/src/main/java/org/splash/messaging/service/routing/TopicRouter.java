@@ -0,0 +1,542 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.splash.messaging.Message;
+import org.splash.messaging.service.management.ManageableEntity;
+import org.splash.messaging.service.management.ManageableEntityFactory;
+import org.splash.messaging.service.management.ManageableEntityType;
+
+/**
+ * Routes on dot separated topic patterns held in a trie with a node per
+ * word, so that matching a routing key costs in proportion to the number of
+ * words in the key rather than the number of routes. '*' matches exactly one
+ * word and '#' matches zero or more words. A destination matched by more than
+ * one pattern receives the message once.
+ *
+ * Routes are only changed while holding the router's lock, and messages are
+ * routed without it. Each node publishes an immutable list of the
+ * destinations of the patterns ending there, which is replaced whenever they
+ * change, and its children are held in concurrent maps. Copying the path to
+ * a changed node instead would copy every sibling map along it, which is too
+ * costly with a million subscriptions.
+ */
+@ManageableEntityType("org.splash.TopicRouter")
+public class TopicRouter extends Router
+{
+    public static class Factory implements ManageableEntityFactory
+    {
+        static Factory _INSTANCE = new Factory();
+
+        public static Factory get()
+        {
+            return _INSTANCE;
+        }
+
+        public ManageableEntity create(String id, String name, Map<String, Object> args)
+                throws IllegalArgumentException
+        {
+            return new TopicRouter(id, name, args);
+        }
+    }
+
+    static final String ROUTING_KEY_0_10 = "x-amqp-0-10.routing-key";
+
+    static final String STAR = "*";
+
+    static final String HASH = "#";
+
+    static final char SEPARATOR = '.';
+
+    // Reused by each thread for the messages it routes
+    private static final ThreadLocal<Matches> _matches = new ThreadLocal<Matches>()
+    {
+        @Override
+        protected Matches initialValue()
+        {
+            return new Matches();
+        }
+    };
+
+    protected final Node _root = new Node();
+
+    TopicRouter(String id, String name, Map<String, Object> args)
+    {
+        super(id, name, args);
+    }
+
+    @Override
+    public List<String> route(Message msg)
+    {
+        String key = msg.getSubject();
+        if (key == null)
+        {
+            if (msg.getApplicationProperties() != null && msg.getApplicationProperties().containsKey(ROUTING_KEY_0_10))
+            {
+                key = (String) msg.getApplicationProperties().get(ROUTING_KEY_0_10);
+            }
+        }
+
+        if (key == null)
+        {
+            return _altDests;
+        }
+        Matches matches = _matches.get();
+        matches.reset(key);
+        match(_root, 0, matches);
+        return matches.get(_altDests);
+    }
+
+    private void match(Node node, int index, Matches dests)
+    {
+        Node hash = node._hash;
+        if (hash != null)
+        {
+            // '#' may consume any number of the remaining words
+            for (int i = index; i <= dests._words; i++)
+            {
+                match(hash, i, dests);
+            }
+        }
+
+        if (index == dests._words)
+        {
+            dests.add(node._dests);
+            return;
+        }
+
+        Node star = node._star;
+        if (star != null)
+        {
+            match(star, index + 1, dests);
+        }
+
+        Map<Word, Node> children = node._children;
+        if (children != null)
+        {
+            Node child = children.get(dests.word(index));
+            if (child != null)
+            {
+                match(child, index + 1, dests);
+            }
+        }
+    }
+
+    @Override
+    public String getType()
+    {
+        return this.getClass().getAnnotation(ManageableEntityType.class).value();
+    }
+
+    @Override
+    public synchronized void addRoute(Route route)
+    {
+        TopicRoute topicRoute = (TopicRoute) route;
+        Node node = _root;
+        for (String word : split(topicRoute.getPattern()))
+        {
+            node = node.child(word);
+        }
+        if (node._routes == null)
+        {
+            node._routes = new ArrayList<TopicRoute>(1);
+        }
+        node._routes.add(topicRoute);
+        node.publish();
+    }
+
+    @Override
+    public synchronized void updateRoute(Route route)
+    {
+        // The destination has changed
+        Node node = _root;
+        for (String word : split(((TopicRoute) route).getPattern()))
+        {
+            node = node.get(word);
+            if (node == null)
+            {
+                return;
+            }
+        }
+        node.publish();
+    }
+
+    @Override
+    public synchronized void removeRoute(Route route)
+    {
+        TopicRoute topicRoute = (TopicRoute) route;
+        String[] words = split(topicRoute.getPattern());
+        Node[] path = new Node[words.length + 1];
+        path[0] = _root;
+        for (int i = 0; i < words.length; i++)
+        {
+            path[i + 1] = path[i].get(words[i]);
+            if (path[i + 1] == null)
+            {
+                return;
+            }
+        }
+
+        Node node = path[words.length];
+        if (node._routes != null)
+        {
+            node._routes.remove(topicRoute);
+            if (node._routes.isEmpty())
+            {
+                node._routes = null;
+            }
+            node.publish();
+        }
+
+        // Prune the nodes left without routes or children
+        for (int i = words.length; i > 0 && path[i].isEmpty(); i--)
+        {
+            path[i - 1].remove(words[i - 1]);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[name=%s, address=%s, alt-address=%s, type=%s]", _name, _address, _altAddress, getType());
+    }
+
+    static String[] split(String key)
+    {
+        int count = 1;
+        for (int i = 0; i < key.length(); i++)
+        {
+            if (key.charAt(i) == SEPARATOR)
+            {
+                count++;
+            }
+        }
+
+        String[] words = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++)
+        {
+            int end = key.indexOf(SEPARATOR, start);
+            words[i] = key.substring(start, end);
+            start = end + 1;
+        }
+        words[count - 1] = key.substring(start);
+        return words;
+    }
+
+    static class Node
+    {
+        volatile Map<Word, Node> _children;
+
+        volatile Node _star;
+
+        volatile Node _hash;
+
+        // Created when the first route ends at this node, as most nodes only
+        // lead to others. Guarded by the router's lock.
+        List<TopicRoute> _routes;
+
+        // The destinations of _routes, as read when routing
+        volatile List<String> _dests;
+
+        Node get(String word)
+        {
+            if (STAR.equals(word))
+            {
+                return _star;
+            }
+            else if (HASH.equals(word))
+            {
+                return _hash;
+            }
+            else
+            {
+                Map<Word, Node> children = _children;
+                return children == null ? null : children.get(new Word(word));
+            }
+        }
+
+        Node child(String word)
+        {
+            Node node = get(word);
+            if (node == null)
+            {
+                node = new Node();
+                if (STAR.equals(word))
+                {
+                    _star = node;
+                }
+                else if (HASH.equals(word))
+                {
+                    _hash = node;
+                }
+                else
+                {
+                    if (_children == null)
+                    {
+                        _children = new ConcurrentHashMap<Word, Node>(4);
+                    }
+                    _children.put(new Word(word), node);
+                }
+            }
+            return node;
+        }
+
+        void remove(String word)
+        {
+            if (STAR.equals(word))
+            {
+                _star = null;
+            }
+            else if (HASH.equals(word))
+            {
+                _hash = null;
+            }
+            else if (_children != null)
+            {
+                _children.remove(new Word(word));
+                if (_children.isEmpty())
+                {
+                    _children = null;
+                }
+            }
+        }
+
+        void publish()
+        {
+            if (_routes == null)
+            {
+                _dests = null;
+            }
+            else
+            {
+                Set<String> dests = new LinkedHashSet<String>();
+                for (TopicRoute route : _routes)
+                {
+                    dests.add(route.getDestination());
+                }
+                _dests = Collections.unmodifiableList(new ArrayList<String>(dests));
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return _routes == null && _children == null && _star == null && _hash == null;
+        }
+    }
+
+    /**
+     * A word of a pattern or routing key, as a range of the string it is in,
+     * so that the words of a key can be looked up in the children of a node
+     * without being copied out of it. Words are equal when they hold the
+     * same characters. Those held by the nodes are never changed, while each
+     * thread reuses one for the words of the keys it routes.
+     */
+    static final class Word
+    {
+        private String _key;
+
+        private int _start;
+
+        private int _end;
+
+        private int _hash;
+
+        Word()
+        {
+        }
+
+        Word(String word)
+        {
+            set(word, 0, word.length());
+        }
+
+        Word set(String key, int start, int end)
+        {
+            _key = key;
+            _start = start;
+            _end = end;
+            int hash = 0;
+            for (int i = start; i < end; i++)
+            {
+                hash = 31 * hash + key.charAt(i);
+            }
+            _hash = hash;
+            return this;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Word))
+            {
+                return false;
+            }
+            Word word = (Word) obj;
+            int length = _end - _start;
+            return word._end - word._start == length && _key.regionMatches(_start, word._key, word._start, length);
+        }
+    }
+
+    /**
+     * The words of the key being routed, by offset, and the destinations of
+     * the nodes it matches, reused by a thread from one message to the next.
+     * The shared list of a single matching node is returned as it is. Lists
+     * merged from several are kept for the most recent combinations of
+     * nodes, as the same keys tend to recur, and are not reused once a node
+     * publishes new destinations, as they are matched by identity.
+     */
+    private static final class Matches
+    {
+        private static final int MERGE_CACHE_SIZE = 16;
+
+        private final Word _word = new Word();
+
+        private String _key;
+
+        // The start of each word, followed by the key's length plus one
+        private int[] _starts = new int[8];
+
+        private int _words;
+
+        private final List<List<String>> _lists = new ArrayList<List<String>>();
+
+        private final Merge[] _merges = new Merge[MERGE_CACHE_SIZE];
+
+        private int _hand;
+
+        void reset(String key)
+        {
+            _key = key;
+            _words = 0;
+            int start = 0;
+            while (true)
+            {
+                if (_words + 2 > _starts.length)
+                {
+                    _starts = Arrays.copyOf(_starts, _starts.length * 2);
+                }
+                _starts[_words++] = start;
+                int end = key.indexOf(SEPARATOR, start);
+                if (end < 0)
+                {
+                    break;
+                }
+                start = end + 1;
+            }
+            _starts[_words] = key.length() + 1;
+            _lists.clear();
+        }
+
+        Word word(int index)
+        {
+            return _word.set(_key, _starts[index], _starts[index + 1] - 1);
+        }
+
+        void add(List<String> dests)
+        {
+            if (dests == null || dests.isEmpty())
+            {
+                return;
+            }
+            for (int i = 0; i < _lists.size(); i++)
+            {
+                if (_lists.get(i) == dests)
+                {
+                    return;
+                }
+            }
+            _lists.add(dests);
+        }
+
+        List<String> get(List<String> altDests)
+        {
+            if (_lists.isEmpty())
+            {
+                return altDests;
+            }
+            else if (_lists.size() == 1)
+            {
+                return _lists.get(0);
+            }
+            for (Merge merge : _merges)
+            {
+                if (merge != null && merge.matches(_lists))
+                {
+                    return merge._dests;
+                }
+            }
+            Merge merge = new Merge(_lists);
+            _merges[_hand] = merge;
+            _hand = (_hand + 1) % MERGE_CACHE_SIZE;
+            return merge._dests;
+        }
+    }
+
+    private static final class Merge
+    {
+        private final Object[] _lists;
+
+        private final List<String> _dests;
+
+        Merge(List<List<String>> lists)
+        {
+            _lists = lists.toArray();
+            Set<String> dests = new LinkedHashSet<String>();
+            for (List<String> list : lists)
+            {
+                dests.addAll(list);
+            }
+            _dests = Collections.unmodifiableList(new ArrayList<String>(dests));
+        }
+
+        boolean matches(List<List<String>> lists)
+        {
+            if (lists.size() != _lists.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < _lists.length; i++)
+            {
+                if (lists.get(i) != _lists[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
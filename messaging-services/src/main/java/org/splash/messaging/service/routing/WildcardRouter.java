@@ -21,16 +21,22 @@
 package org.splash.messaging.service.routing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.splash.messaging.Message;
 import org.splash.messaging.service.management.ManageableEntity;
 import org.splash.messaging.service.management.ManageableEntityFactory;
 import org.splash.messaging.service.management.ManageableEntityType;
+import org.splash.messaging.service.management.ManagementAttribute;
 
 @ManageableEntityType("org.splash.WildcardRouter")
 public class WildcardRouter extends Router
@@ -53,18 +59,118 @@ public class WildcardRouter extends Router
 
     static final String ROUTING_KEY_0_10 = "x-amqp-0-10.routing-key";
 
+    static final String COMPILED = "compiled";
+
+    static final String CACHE_SIZE = "cache_size";
+
+    static final String CACHE_HITS = "cache_hits";
+
+    static final String CACHE_MISSES = "cache_misses";
+
+    static final String BATCH_REPEATS = "batch_repeats";
+
+    // Only changed by management, while holding the router's lock
     protected final Map<String, RouteEntry> _routes = new HashMap<String, RouteEntry>();
 
+    // What messages are routed with, replaced as a whole whenever the routes
+    // change so that routing can read it without locking
+    protected volatile Table _table;
+
+    /**
+     * When set, the patterns are combined into a single automaton that
+     * matches a key against all of them in one pass, instead of each pattern
+     * being evaluated in turn. Patterns the automaton can't represent are
+     * still evaluated on their own.
+     */
+    @ManagementAttribute("compiled")
+    protected boolean _compiled;
+
+    /**
+     * The number of routing keys whose destinations are cached. Keys that
+     * have not been used since the clock last passed them are evicted first.
+     * 0 disables the cache.
+     */
+    @ManagementAttribute("cacheSize")
+    protected int _cacheSize;
+
+    @ManagementAttribute("cacheHits")
+    protected final AtomicLong _cacheHits = new AtomicLong();
+
+    @ManagementAttribute("cacheMisses")
+    protected final AtomicLong _cacheMisses = new AtomicLong();
+
+    /**
+     * The messages of a batch routed with the destinations of the message
+     * before, as they had the same key, without a lookup in the cache.
+     */
+    @ManagementAttribute("batchRepeats")
+    protected final AtomicLong _batchRepeats = new AtomicLong();
+
+    protected final Map<String, CachedRoute> _cache = new ConcurrentHashMap<String, CachedRoute>();
+
+    // The clock hand, guarded by _cache
+    private Iterator<CachedRoute> _hand;
+
     WildcardRouter(String id, String name, Map<String, Object> args)
     {
         super(id, name, args);
+        if (args.containsKey(CACHE_SIZE))
+        {
+            _cacheSize = Integer.parseInt(String.valueOf(args.get(CACHE_SIZE)));
+        }
+        else
+        {
+            _cacheSize = Integer.getInteger("splash.router.wildcard.cache_size", 1024);
+        }
+        if (args.containsKey(COMPILED))
+        {
+            _compiled = Boolean.parseBoolean(String.valueOf(args.get(COMPILED)));
+        }
+        else
+        {
+            _compiled = Boolean.getBoolean("splash.router.wildcard.compiled");
+        }
+        _table = new Table(0, _routes, _compiled ? automaton() : null, _altDests);
     }
 
     @Override
     public List<String> route(Message msg)
     {
-        List<String> dests = new LinkedList<String>();
+        return route(key(msg), _table);
+    }
 
+    // Reads the table once for the batch, and only looks up a key again
+    // when it differs from that of the message before. Repeated keys are
+    // counted apart from the cache hits, as they never reach the cache.
+    @Override
+    public void route(List<Message> msgs, int from, int to, List<String>[] destinations)
+    {
+        Table table = _table;
+        String lastKey = null;
+        List<String> lastDests = null;
+        int repeats = 0;
+        for (int i = from; i < to; i++)
+        {
+            String key = key(msgs.get(i));
+            if (lastDests == null || !(key == null ? lastKey == null : key.equals(lastKey)))
+            {
+                lastDests = route(key, table);
+                lastKey = key;
+            }
+            else
+            {
+                repeats++;
+            }
+            destinations[i] = lastDests;
+        }
+        if (repeats > 0)
+        {
+            _batchRepeats.addAndGet(repeats);
+        }
+    }
+
+    static String key(Message msg)
+    {
         String key = msg.getSubject();
         if (key == null)
         {
@@ -73,26 +179,69 @@ public class WildcardRouter extends Router
                 key = (String) msg.getApplicationProperties().get(ROUTING_KEY_0_10);
             }
         }
+        return key;
+    }
 
-        for (String str : _routes.keySet())
+    private List<String> route(String key, Table table)
+    {
+        if (_cacheSize <= 0 || key == null)
         {
-            if (_routes.get(str)._pattern.matcher(key).matches())
+            return table.match(key);
+        }
+
+        CachedRoute cached = _cache.get(key);
+        if (cached != null && cached._generation == table._generation)
+        {
+            if (!cached._referenced)
             {
-                for (WildcardRoute route : _routes.get(str)._routes)
-                {
-                    dests.add(route.getDestination());
-                }
+                cached._referenced = true;
             }
+            _cacheHits.incrementAndGet();
+            return cached._dests;
         }
 
-        if (dests.size() == 0 && _altAddress != null)
+        _cacheMisses.incrementAndGet();
+        List<String> dests = table.match(key);
+        if (dests instanceof ArrayList)
         {
-            dests.add(_altAddress);
+            dests = Collections.unmodifiableList(Arrays.asList(dests.toArray(new String[dests.size()])));
+        }
+        // Destinations matched against a table that has since been replaced
+        // are not used again, as the generation no longer matches.
+        _cache.put(key, new CachedRoute(table._generation, dests));
+        if (_cache.size() > _cacheSize)
+        {
+            evict();
         }
-
         return dests;
     }
 
+    // Moves the clock hand on, clearing the referenced flag of the keys it
+    // passes and evicting the first that was not referenced since the last
+    // time round.
+    private void evict()
+    {
+        synchronized (_cache)
+        {
+            while (_cache.size() > _cacheSize)
+            {
+                if (_hand == null || !_hand.hasNext())
+                {
+                    _hand = _cache.values().iterator();
+                }
+                CachedRoute cached = _hand.next();
+                if (cached._referenced)
+                {
+                    cached._referenced = false;
+                }
+                else
+                {
+                    _hand.remove();
+                }
+            }
+        }
+    }
+
     @Override
     public String getType()
     {
@@ -100,29 +249,63 @@ public class WildcardRouter extends Router
     }
 
     @Override
-    public void addRoute(Route route)
+    public synchronized void addRoute(Route route)
     {
         WildcardRoute wildcardRoute = (WildcardRoute) route;
         if (_routes.containsKey(wildcardRoute.getPattern()))
         {
             _routes.get(wildcardRoute.getPattern())._routes.add(wildcardRoute);
+            publish(false);
         }
         else
         {
             RouteEntry entry = this.new RouteEntry(Pattern.compile(wildcardRoute.getPattern()));
             entry._routes.add(wildcardRoute);
             _routes.put(wildcardRoute.getPattern(), entry);
+            if (_compiled)
+            {
+                entry._fragment = RegexAutomaton.compile(wildcardRoute.getPattern());
+            }
+            publish(true);
+        }
+    }
+
+    @Override
+    public synchronized void updateRoute(Route route)
+    {
+        WildcardRoute wildcardRoute = (WildcardRoute) route;
+        if (_routes.containsKey(wildcardRoute.getPattern())
+                && _routes.get(wildcardRoute.getPattern())._routes.contains(route))
+        {
+            // The destination has changed
+            publish(false);
         }
+        else
+        {
+            addRoute(route);
+        }
+    }
+
+    @Override
+    public Map<String, Object> read()
+    {
+        _args.put(CACHE_HITS, _cacheHits.get());
+        _args.put(CACHE_MISSES, _cacheMisses.get());
+        _args.put(BATCH_REPEATS, _batchRepeats.get());
+        return _args;
     }
 
     @Override
-    public void updateRoute(Route route)
+    public synchronized Map<String, Object> update(Map<String, Object> attributes) throws IllegalArgumentException
     {
-        addRoute(route);
+        super.update(attributes);
+        // The alternate address may have changed
+        publish(false);
+        return _args;
     }
 
     @Override
-    public void removeRoute(Route route)
+    public synchronized void removeRoute(Route route)
     {
         WildcardRoute wildcardRoute = (WildcardRoute) route;
         if (_routes.containsKey(wildcardRoute.getPattern()))
@@ -131,10 +314,42 @@ public class WildcardRouter extends Router
             if (_routes.get(wildcardRoute.getPattern())._routes.isEmpty())
             {
                 _routes.remove(wildcardRoute.getPattern());
+                publish(true);
+            }
+            else
+            {
+                publish(false);
             }
         }
     }
 
+    // Replaces the table, with a new automaton if the set of patterns has
+    // changed. Only the pattern that changed has been compiled, the automaton
+    // states for the new set of patterns are built as keys are matched.
+    private void publish(boolean patternsChanged)
+    {
+        Table table = _table;
+        RegexAutomaton<String> automaton = table._automaton;
+        if (_compiled && patternsChanged)
+        {
+            automaton = automaton();
+        }
+        _table = new Table(table._generation + 1, _routes, automaton, _altDests);
+    }
+
+    private RegexAutomaton<String> automaton()
+    {
+        Map<RegexAutomaton.Fragment, String> patterns = new IdentityHashMap<RegexAutomaton.Fragment, String>();
+        for (Map.Entry<String, RouteEntry> entry : _routes.entrySet())
+        {
+            if (entry.getValue()._fragment != null)
+            {
+                patterns.put(entry.getValue()._fragment, entry.getKey());
+            }
+        }
+        return new RegexAutomaton<String>(patterns);
+    }
+
     @Override
     public String toString()
     {
@@ -147,10 +362,227 @@ public class WildcardRouter extends Router
 
         List<WildcardRoute> _routes;
 
+        RegexAutomaton.Fragment _fragment;
+
         RouteEntry(Pattern pattern)
         {
             _pattern = pattern;
             _routes = new ArrayList<WildcardRoute>();
         }
     }
-}
\ No newline at end of file
+
+    // Reused by each thread for the messages it routes
+    private static final ThreadLocal<MatchSet> _matchSets = new ThreadLocal<MatchSet>()
+    {
+        @Override
+        protected MatchSet initialValue()
+        {
+            return new MatchSet();
+        }
+    };
+
+    /**
+     * An immutable snapshot of the routes, holding the destinations for each
+     * pattern. The destinations merged for the patterns that match a key
+     * together are kept for the other keys matching the same ones, up to
+     * MAX_MERGED sets of patterns.
+     */
+    static class Table
+    {
+        static final int MAX_MERGED = 1024;
+
+        final int _generation;
+
+        final Map<String, Pattern> _patterns = new HashMap<String, Pattern>();
+
+        final Map<String, List<String>> _dests = new HashMap<String, List<String>>();
+
+        final RegexAutomaton<String> _automaton;
+
+        final List<String> _uncompiled = new ArrayList<String>();
+
+        final List<String> _altDests;
+
+        final Map<MatchSet, List<String>> _merged = new ConcurrentHashMap<MatchSet, List<String>>();
+
+        Table(int generation, Map<String, RouteEntry> routes, RegexAutomaton<String> automaton,
+                List<String> altDests)
+        {
+            _generation = generation;
+            _automaton = automaton;
+            _altDests = altDests;
+            for (Map.Entry<String, RouteEntry> entry : routes.entrySet())
+            {
+                _patterns.put(entry.getKey(), entry.getValue()._pattern);
+                _dests.put(entry.getKey(), destinations(entry.getValue()._routes));
+                if (automaton != null && entry.getValue()._fragment == null)
+                {
+                    _uncompiled.add(entry.getKey());
+                }
+            }
+        }
+
+        List<String> match(String key)
+        {
+            MatchSet matches = _matchSets.get();
+            try
+            {
+                List<String> matched = (_automaton == null || key == null) ? null : _automaton.match(key);
+                if (matched != null)
+                {
+                    for (String pattern : matched)
+                    {
+                        matches.add(_dests.get(pattern));
+                    }
+                    for (String pattern : _uncompiled)
+                    {
+                        if (_patterns.get(pattern).matcher(key).matches())
+                        {
+                            matches.add(_dests.get(pattern));
+                        }
+                    }
+                }
+                else if (key != null)
+                {
+                    for (Map.Entry<String, Pattern> entry : _patterns.entrySet())
+                    {
+                        if (entry.getValue().matcher(key).matches())
+                        {
+                            matches.add(_dests.get(entry.getKey()));
+                        }
+                    }
+                }
+
+                if (matches._size == 0)
+                {
+                    return _altDests;
+                }
+                else if (matches._size == 1)
+                {
+                    return matches._lists[0];
+                }
+                return merged(matches);
+            }
+            finally
+            {
+                matches.clear();
+            }
+        }
+
+        // A single matching pattern's destinations are returned as they are,
+        // those of several are merged once for all the keys matching them.
+        private List<String> merged(MatchSet matches)
+        {
+            List<String> dests = _merged.get(matches);
+            if (dests == null)
+            {
+                List<String> merged = new ArrayList<String>();
+                for (int i = 0; i < matches._size; i++)
+                {
+                    merged.addAll(matches._lists[i]);
+                }
+                dests = Collections.unmodifiableList(merged);
+                if (_merged.size() < MAX_MERGED)
+                {
+                    _merged.put(matches.copy(), dests);
+                }
+            }
+            return dests;
+        }
+    }
+
+    /**
+     * The destination lists of the patterns matching a key, which are equal
+     * to those of another set holding the same lists in the same order.
+     */
+    static final class MatchSet
+    {
+        private List<String>[] _lists;
+
+        private int _size;
+
+        private int _hash;
+
+        @SuppressWarnings("unchecked")
+        MatchSet()
+        {
+            _lists = new List[4];
+        }
+
+        private MatchSet(List<String>[] lists, int hash)
+        {
+            _lists = lists;
+            _size = lists.length;
+            _hash = hash;
+        }
+
+        void add(List<String> dests)
+        {
+            if (dests.isEmpty())
+            {
+                return;
+            }
+            if (_size == _lists.length)
+            {
+                _lists = Arrays.copyOf(_lists, _size * 2);
+            }
+            _lists[_size++] = dests;
+            _hash = 31 * _hash + System.identityHashCode(dests);
+        }
+
+        void clear()
+        {
+            Arrays.fill(_lists, 0, _size, null);
+            _size = 0;
+            _hash = 0;
+        }
+
+        MatchSet copy()
+        {
+            return new MatchSet(Arrays.copyOf(_lists, _size), _hash);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof MatchSet))
+            {
+                return false;
+            }
+            MatchSet other = (MatchSet) obj;
+            if (other._size != _size)
+            {
+                return false;
+            }
+            for (int i = 0; i < _size; i++)
+            {
+                if (other._lists[i] != _lists[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class CachedRoute
+    {
+        final int _generation;
+
+        final List<String> _dests;
+
+        volatile boolean _referenced;
+
+        CachedRoute(int generation, List<String> dests)
+        {
+            _generation = generation;
+            _dests = dests;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.splash.messaging.service.routing;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.splash.messaging.DeliveryState;
+import org.splash.messaging.Message;
+import org.splash.messaging.MessageDisposition;
+import org.splash.messaging.OutboundLink;
+import org.splash.messaging.Tracker;
+
+public class DestinationLinkTest
+{
+    @Test
+    public void testIdleLinkKeptUntilCopiesSettled()
+    {
+        StubLink outLink = new StubLink();
+        DestinationLink link = new DestinationLink("dest", outLink, 10, new DestinationLoad.Registry());
+        StubTracker tracker = new StubTracker();
+        InboundDelivery delivery = new InboundDelivery(null, null);
+        delivery.track(tracker, link.getInFlight());
+
+        assertFalse("Evicted with a copy in flight", link.closeIfIdle(0));
+        assertFalse(outLink._closed);
+
+        tracker._settled = true;
+        InboundDelivery.settled(tracker);
+        assertTrue("Not evicted once the copy was settled", link.closeIfIdle(0));
+        assertTrue(outLink._closed);
+    }
+
+    private static class StubTracker implements Tracker
+    {
+        private final Map<String, Object> _context = new HashMap<String, Object>();
+
+        boolean _settled = false;
+
+        @Override
+        public void put(String key, Object value)
+        {
+            _context.put(key, value);
+        }
+
+        @Override
+        public Object get(String key)
+        {
+            return _context.get(key);
+        }
+
+        @Override
+        public DeliveryState getState()
+        {
+            return null;
+        }
+
+        @Override
+        public MessageDisposition getDisposition()
+        {
+            return MessageDisposition.ACCEPTED;
+        }
+
+        @Override
+        public void awaitSettlement(int... flags)
+        {
+        }
+
+        @Override
+        public void awaitSettlement(long timeout, TimeUnit unit, int... flags)
+        {
+        }
+
+        @Override
+        public boolean isSettled()
+        {
+            return _settled;
+        }
+    }
+
+    private static class StubLink implements OutboundLink
+    {
+        private final Map<String, Object> _context = new HashMap<String, Object>();
+
+        boolean _closed = false;
+
+        @Override
+        public void put(String key, Object value)
+        {
+            _context.put(key, value);
+        }
+
+        @Override
+        public Object get(String key)
+        {
+            return _context.get(key);
+        }
+
+        @Override
+        public String getAddress()
+        {
+            return "dest";
+        }
+
+        @Override
+        public void offerCredits(int credits)
+        {
+        }
+
+        @Override
+        public int getCredit()
+        {
+            return 0;
+        }
+
+        @Override
+        public int getUnsettled()
+        {
+            return 0;
+        }
+
+        @Override
+        public Tracker send(Message msg)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Tracker relay(Message msg)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Tracker> send(Message msg, List<String> addresses)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+            _closed = true;
+        }
+    }
+}